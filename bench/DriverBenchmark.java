@@ -0,0 +1,207 @@
+import com.sun.management.ThreadMXBean;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Micro benchmarks for the driver's hot path, fed with the frames recorded in train_data/ and
+ * dirt_data/ so the inputs follow the real sensor distributions.
+ *
+ * Every benchmark runs for each combination of history and hidden layer size, with a few warmup
+ * iterations followed by timed measurement iterations. Reported per benchmark are the throughput
+ * (ops/ms), the average time (ns/op) and, like JMH's gc profiler, the bytes allocated per op and
+ * the number of collections during measurement.
+ *
+ * Usage: DriverBenchmark [-history 0,2,5] [-hidden 12,16,32] [-warmup 3] [-iterations 5] [-time 1000]
+ */
+public class DriverBenchmark {
+
+    /**
+     * One invocation of the code under test; the result is consumed so it can't be optimized away.
+     */
+    interface Operation {
+        double run();
+    }
+
+    private static volatile double sink;
+
+    private static int warmup = 3;
+    private static int iterations = 5;
+    private static long time = 1000;
+
+    public static void main(String[] args) throws IOException {
+        int[] histories = {0, 2, 5};
+        int[] hiddens = {12, 16, 32};
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-history":
+                    histories = parseList(args[i + 1]);
+                    break;
+                case "-hidden":
+                    hiddens = parseList(args[i + 1]);
+                    break;
+                case "-warmup":
+                    warmup = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-iterations":
+                    iterations = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-time":
+                    time = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    System.err.printf("Unknown option %s\n", args[i]);
+            }
+        }
+
+        List<String> road_files = csvFiles("train_data");
+        List<String> dirt_files = csvFiles("dirt_data");
+
+        // the normalization only depends on the data, so share it between all configurations
+        DataModel road_model = new DataModel();
+        road_model.load_data(road_files);
+        DataModel dirt_model = new DataModel();
+        dirt_model.load_data(dirt_files);
+
+        ReplaySensorModel road_frames = new ReplaySensorModel(road_files);
+        ReplaySensorModel dirt_frames = new ReplaySensorModel(dirt_files);
+
+        System.out.printf("%-16s %8s %7s %14s %12s %12s %6s\n",
+                "Benchmark", "history", "hidden", "thrpt (ops/ms)", "avgt (ns/op)", "alloc (B/op)", "gc");
+
+        for (int history : histories) {
+            for (int hidden : hiddens) {
+                NeuralNetwork network = new NeuralNetwork(hidden, history);
+                network.road_model = road_model;
+                network.dirt_model = dirt_model;
+
+                DefaultDriver road_driver = new DefaultDriver();
+                road_driver.setNeuralNetwork(network);
+                road_driver.setTrackName("aalborg");
+
+                DefaultDriver dirt_driver = new DefaultDriver();
+                dirt_driver.setNeuralNetwork(network);
+                dirt_driver.setTrackName("dirt-1");
+
+                double[] features = new double[22];
+                double[] window = new double[(history + 1) * 22];
+                double[] output = new double[3];
+                double[] q_output = new double[network.acc_offsets.length];
+
+                run("control/road", history, hidden, () -> {
+                    road_frames.next();
+                    return road_driver.control(road_frames).accelerate;
+                });
+
+                run("control/dirt", history, hidden, () -> {
+                    dirt_frames.next();
+                    return dirt_driver.control(dirt_frames).accelerate;
+                });
+
+                run("format_input", history, hidden, () -> {
+                    road_frames.next();
+                    road_model.format_input(road_frames, true, features, 0);
+                    return features[0];
+                });
+
+                run("getRoadOutput", history, hidden, () -> {
+                    road_frames.next();
+                    fillWindow(road_frames, window);
+                    network.getRoadOutput(window, output);
+                    return output[0];
+                });
+
+                run("getDirtOutput", history, hidden, () -> {
+                    dirt_frames.next();
+                    fillWindow(dirt_frames, window);
+                    network.getDirtOutput(window, output);
+                    return output[0];
+                });
+
+                run("getQOutput", history, hidden, () -> {
+                    road_frames.next();
+                    network.getQOutput(road_frames.getFeatures(), q_output);
+                    return q_output[0];
+                });
+            }
+        }
+    }
+
+    /**
+     * Shift the window one frame and append the replay's current frame, like the driver's history.
+     */
+    private static void fillWindow(ReplaySensorModel frames, double[] window) {
+        System.arraycopy(window, 22, window, 0, window.length - 22);
+        System.arraycopy(frames.getFeatures(), 0, window, window.length - 22, 22);
+    }
+
+    private static void run(String name, int history, int hidden, Operation operation) {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        for (int i = 0; i < warmup; ++i)
+            iteration(operation);
+
+        long ops = 0;
+        long nanos = 0;
+        long bytes = threads.getThreadAllocatedBytes(thread);
+        long collections = gcCount();
+        for (int i = 0; i < iterations; ++i) {
+            long start = System.nanoTime();
+            ops += iteration(operation);
+            nanos += System.nanoTime() - start;
+        }
+        bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+        collections = gcCount() - collections;
+
+        System.out.printf("%-16s %8d %7d %14.1f %12.1f %12.1f %6d\n", name, history, hidden,
+                ops / (nanos / 1e6), (double) nanos / ops, (double) bytes / ops, collections);
+    }
+
+    /**
+     * Call the operation for (at least) the iteration time, checking the clock every 256 calls.
+     */
+    private static long iteration(Operation operation) {
+        long deadline = System.nanoTime() + time * 1_000_000L;
+        long ops = 0;
+        double result = 0;
+        do {
+            for (int i = 0; i < 256; ++i)
+                result += operation.run();
+            ops += 256;
+        } while (System.nanoTime() < deadline);
+
+        sink = result;
+        return ops;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, gc.getCollectionCount());
+
+        return count;
+    }
+
+    private static List<String> csvFiles(String folder) throws IOException {
+        return Files.list(Paths.get(folder))
+                .map(String::valueOf)
+                .filter(path -> path.endsWith(".csv"))
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    static int[] parseList(String values) {
+        String[] parts = values.split(",");
+        int[] out = new int[parts.length];
+        for (int i = 0; i < parts.length; ++i)
+            out[i] = Integer.parseInt(parts[i].trim());
+
+        return out;
+    }
+}
@@ -0,0 +1,137 @@
+import org.encog.neural.networks.BasicNetwork;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Checks that FrozenNetwork computes the same outputs as Encog: compute() and computeBatch()
+ * on raw features against BasicNetwork.compute() on the same features normalized by the
+ * DataModel. Runs the road and Q architectures for every combination of history and hidden
+ * layer size with random weights and statistics, and the stored genome if there is one.
+ *
+ * Exits with status 1 if any output differs by more than TOLERANCE.
+ *
+ * Usage: FrozenNetworkParity [-history 0,2,5] [-hidden 12,16,32] [-rows 1000] [-seed 42]
+ */
+public class FrozenNetworkParity {
+    public static final double TOLERANCE = 1e-9;
+
+    private static int rows = 1000;
+    private static Random random = new Random(42);
+    private static boolean failed = false;
+
+    public static void main(String[] args) {
+        int[] histories = {0, 2, 5};
+        int[] hiddens = {12, 16, 32};
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-history":
+                    histories = DriverBenchmark.parseList(args[i + 1]);
+                    break;
+                case "-hidden":
+                    hiddens = DriverBenchmark.parseList(args[i + 1]);
+                    break;
+                case "-rows":
+                    rows = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-seed":
+                    random = new Random(Long.parseLong(args[i + 1]));
+                    break;
+                default:
+                    System.err.printf("Unknown option %s\n", args[i]);
+            }
+        }
+
+        System.out.printf("%-24s %8s %7s %14s %14s\n", "Network", "history", "hidden", "compute", "computeBatch");
+
+        for (int history : histories) {
+            for (int hidden : hiddens) {
+                NeuralNetwork network = new NeuralNetwork(hidden, history);
+                DataModel model = randomModel();
+                check("random road", history, hidden, network.road_network, model);
+                check("random q", history, hidden, network.q_network, model);
+            }
+        }
+
+        if (new File("memory/mydriver.mem").exists()) {
+            NeuralNetwork stored = NeuralNetwork.loadGenome();
+            int hidden = stored.road_network.getLayerNeuronCount(1);
+            check("stored road", stored.history, hidden, stored.road_network, stored.road_model);
+            check("stored dirt", stored.history, hidden, stored.dirt_network, stored.dirt_model);
+            check("stored q road", stored.history, hidden, stored.q_network, stored.road_model);
+            check("stored q dirt", stored.history, hidden, stored.dirt_q, stored.dirt_model);
+        }
+
+        if (failed) {
+            System.out.printf("FAILED: outputs differ by more than %g\n", TOLERANCE);
+            System.exit(1);
+        }
+        System.out.printf("All outputs within %g\n", TOLERANCE);
+    }
+
+    /**
+     * Compare the compiled network with Encog on random raw features and print the largest
+     * differences.
+     */
+    private static void check(String name, int history, int hidden, BasicNetwork network, DataModel model) {
+        int n_in = network.getInputCount();
+        int n_out = network.getOutputCount();
+        FrozenNetwork frozen = FrozenNetwork.compile(network, model);
+
+        double[] inputs = new double[rows * n_in];
+        double[] expected = new double[rows * n_out];
+        double[] normalized = new double[n_in];
+        double[] reference = new double[n_out];
+        double[] means = model.getMeans();
+        double[] stddevs = model.getStddevs();
+        for (int r = 0; r < rows; ++r) {
+            for (int i = 0; i < n_in; ++i) {
+                int feature = i % means.length;
+                inputs[r * n_in + i] = means[feature] + stddevs[feature] * random.nextGaussian();
+            }
+            System.arraycopy(inputs, r * n_in, normalized, 0, n_in);
+            for (int offset = 0; offset < n_in; offset += means.length)
+                model.normalize(normalized, offset);
+            network.compute(normalized, reference);
+            System.arraycopy(reference, 0, expected, r * n_out, n_out);
+        }
+
+        double[] input = new double[n_in];
+        double[] output = new double[n_out];
+        double single = 0;
+        for (int r = 0; r < rows; ++r) {
+            System.arraycopy(inputs, r * n_in, input, 0, n_in);
+            frozen.compute(input, output);
+            for (int o = 0; o < n_out; ++o)
+                single = Math.max(single, Math.abs(output[o] - expected[r * n_out + o]));
+        }
+
+        double[] outputs = new double[rows * n_out];
+        frozen.computeBatch(inputs, rows, outputs);
+        double batch = 0;
+        for (int i = 0; i < outputs.length; ++i)
+            batch = Math.max(batch, Math.abs(outputs[i] - expected[i]));
+
+        failed |= !(single <= TOLERANCE && batch <= TOLERANCE);
+        System.out.printf("%-24s %8d %7d %14.3e %14.3e\n", name, history, hidden, single, batch);
+    }
+
+    /**
+     * Statistics of 22 features with random means and standard deviations of different scales,
+     * like the sensors have.
+     */
+    private static DataModel randomModel() {
+        double[] means = new double[22];
+        double[] stddevs = new double[22];
+        for (int i = 0; i < means.length; ++i) {
+            double scale = Math.pow(10, random.nextInt(4) - 1);
+            means[i] = scale * random.nextGaussian();
+            stddevs[i] = scale * (0.1 + random.nextDouble());
+        }
+
+        DataModel model = new DataModel();
+        model.setStatistics(means, stddevs);
+
+        return model;
+    }
+}
@@ -0,0 +1,209 @@
+import scr.SensorModel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A SensorModel that replays the frames recorded by LoggingDriver, so the driver can be fed real
+ * sensor data without running TORCS. Only the sensors that are logged (speed, track position,
+ * angle and the 19 track edge sensors) are replayed, everything else reads as an empty track
+ * with no opponents.
+ *
+ * The recorded action of every frame is kept as well, see getAcceleration() etc.
+ */
+public class ReplaySensorModel implements SensorModel {
+    private final double[][] actions;
+    private final double[][] features;
+    private final double[][] edges;
+    private final double[] opponents;
+    private int frame;
+
+    public ReplaySensorModel(List<String> paths) throws IOException {
+        ArrayList<double[]> rows = new ArrayList<>();
+        for (String path : paths) {
+            // same layout as the training data: a header, then 3 actions followed by 22 sensors
+            CsvParser.parse(path, 25, true, row -> rows.add(row.clone()));
+        }
+
+        if (rows.isEmpty())
+            throw new IOException("No frames found in " + paths);
+
+        actions = new double[rows.size()][];
+        features = new double[rows.size()][];
+        edges = new double[rows.size()][];
+        for (int i = 0; i < rows.size(); ++i) {
+            double[] values = rows.get(i);
+            actions[i] = Arrays.copyOfRange(values, 0, 3);
+            features[i] = Arrays.copyOfRange(values, 3, 25);
+            edges[i] = Arrays.copyOfRange(values, 6, 25);
+        }
+
+        opponents = new double[36];
+        Arrays.fill(opponents, 200);
+    }
+
+    public int size() {
+        return features.length;
+    }
+
+    public int getFrame() {
+        return frame;
+    }
+
+    public void setFrame(int frame) {
+        this.frame = frame;
+    }
+
+    /**
+     * Move to the next recorded frame, wrapping around at the end of the log.
+     */
+    public void next() {
+        frame = frame + 1 == features.length ? 0 : frame + 1;
+    }
+
+    /**
+     * The 22 raw features of the current frame, in the same order as DataModel.format_input.
+     */
+    public double[] getFeatures() {
+        return features[frame];
+    }
+
+    public double getAcceleration() {
+        return actions[frame][0];
+    }
+
+    public double getBrake() {
+        return actions[frame][1];
+    }
+
+    public double getSteering() {
+        return actions[frame][2];
+    }
+
+    @Override
+    public double getSpeed() {
+        return features[frame][0];
+    }
+
+    @Override
+    public double getTrackPosition() {
+        return features[frame][1];
+    }
+
+    @Override
+    public double getAngleToTrackAxis() {
+        return features[frame][2];
+    }
+
+    @Override
+    public double[] getTrackEdgeSensors() {
+        return edges[frame];
+    }
+
+    @Override
+    public double[] getFocusSensors() {
+        return new double[5];
+    }
+
+    @Override
+    public int getGear() {
+        return 1;
+    }
+
+    @Override
+    public double[] getOpponentSensors() {
+        return opponents;
+    }
+
+    @Override
+    public int getRacePosition() {
+        return 1;
+    }
+
+    @Override
+    public double getLateralSpeed() {
+        return 0;
+    }
+
+    @Override
+    public double getCurrentLapTime() {
+        return 0;
+    }
+
+    @Override
+    public double getDamage() {
+        return 0;
+    }
+
+    @Override
+    public double getDistanceFromStartLine() {
+        return 0;
+    }
+
+    @Override
+    public double getDistanceRaced() {
+        return 0;
+    }
+
+    @Override
+    public double getFuelLevel() {
+        return 0;
+    }
+
+    @Override
+    public double getLastLapTime() {
+        return 0;
+    }
+
+    @Override
+    public double getRPM() {
+        return 0;
+    }
+
+    @Override
+    public double[] getWheelSpinVelocity() {
+        return new double[4];
+    }
+
+    @Override
+    public double getZSpeed() {
+        return 0;
+    }
+
+    @Override
+    public double getZ() {
+        return 0;
+    }
+
+    @Override
+    public String getMessage() {
+        return "";
+    }
+
+    @Override
+    public double getBestLapTime() {
+        return 0;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return false;
+    }
+
+    @Override
+    public double getTime() {
+        return 0;
+    }
+
+    @Override
+    public int getTicks() {
+        return frame;
+    }
+
+    @Override
+    public int getLaps() {
+        return 0;
+    }
+}
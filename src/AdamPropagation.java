@@ -0,0 +1,87 @@
+import org.encog.ml.data.MLDataSet;
+import org.encog.neural.networks.ContainsFlat;
+import org.encog.neural.networks.training.propagation.Propagation;
+import org.encog.neural.networks.training.propagation.TrainingContinuation;
+
+/**
+ * Adam (Kingma & Ba) on top of Encog's propagation, which computes the gradients and calls
+ * updateWeight for every weight once per iteration. Mini-batches are full-batch iterations
+ * over a small training set; Encog's own setBatchSize computes all batches of an iteration at
+ * the weights it started with, so it isn't used. The gradients Encog
+ * accumulates already point downhill and are summed over the batch; Adam's step doesn't
+ * depend on the scale of the gradients, so they're used as they are.
+ */
+public class AdamPropagation extends Propagation {
+    private final double learning_rate;
+    private final double beta1 = 0.9;
+    private final double beta2 = 0.999;
+    private final double epsilon = 1e-8;
+
+    private final double[] m;
+    private final double[] v;
+    private long steps;
+    // beta^steps, updated once per batch instead of calling pow for every weight
+    private double beta1_power = 1;
+    private double beta2_power = 1;
+
+    public AdamPropagation(ContainsFlat network, MLDataSet training, double learning_rate) {
+        super(network, training);
+        this.learning_rate = learning_rate;
+
+        int weights = network.getFlat().getWeights().length;
+        m = new double[weights];
+        v = new double[weights];
+    }
+
+    @Override
+    protected void learn() {
+        step();
+        super.learn();
+    }
+
+    @Override
+    protected void learnLimited() {
+        step();
+        super.learnLimited();
+    }
+
+    private void step() {
+        steps++;
+        beta1_power *= beta1;
+        beta2_power *= beta2;
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    @Override
+    public void initOthers() {
+    }
+
+    @Override
+    public double updateWeight(double[] gradients, double[] last_gradient, int index) {
+        double gradient = gradients[index];
+        m[index] = beta1 * m[index] + (1 - beta1) * gradient;
+        v[index] = beta2 * v[index] + (1 - beta2) * gradient * gradient;
+
+        double m_hat = m[index] / (1 - beta1_power);
+        double v_hat = v[index] / (1 - beta2_power);
+        return learning_rate * m_hat / (Math.sqrt(v_hat) + epsilon);
+    }
+
+    @Override
+    public boolean canContinue() {
+        return false;
+    }
+
+    // the moments aren't saved, canContinue tells callers not to pause
+    @Override
+    public TrainingContinuation pause() {
+        return null;
+    }
+
+    @Override
+    public void resume(TrainingContinuation state) {
+    }
+}
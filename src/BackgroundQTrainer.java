@@ -0,0 +1,154 @@
+import org.encog.neural.networks.BasicNetwork;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Trains a Q network on a background thread while the driver keeps racing with it.
+ *
+ * The driver adds its transitions to a replay buffer; the trainer repeatedly samples a batch
+ * from it and updates a shadow copy of the network on it (see QBatchUpdate). After every
+ * round the shadow copy is
+ * compiled into a new FrozenNetwork and published through an atomic reference. A published
+ * network is never changed again and every driver computes with it in its own scratch space,
+ * so the driving thread always computes with a complete set of weights, never takes a lock
+ * for it and never waits for training. The buffer is shared, its lock is only held to add a transition, to copy
+ * a sampled batch out, or to set the batch's new priorities, never while training.
+ */
+public class BackgroundQTrainer {
+    // don't train before there's this much experience
+    public int min_transitions = 256;
+
+    private final BasicNetwork network;
+    private final BasicNetwork shadow;
+    private final DataModel model;
+    private final ReplayBuffer buffer;
+    private final AtomicReference<FrozenNetwork> published;
+    private final Random random = new Random();
+    private final QBatchUpdate update;
+    // the sampled transitions, copied out of the shared buffer
+    private final ReplayBuffer batch;
+    private final int[] indices;
+    private final int[] order;
+
+    private volatile boolean running;
+    private volatile int rounds;
+    private Thread thread;
+
+    /**
+     * Train a copy of network, which takes states normalized by model, on transitions of
+     * state_size features.
+     */
+    public BackgroundQTrainer(BasicNetwork network, DataModel model, int capacity, int state_size, double gamma) {
+        this.network = network;
+        this.shadow = (BasicNetwork) network.clone();
+        this.model = model;
+        this.buffer = new ReplayBuffer(capacity, state_size);
+        update = new QBatchUpdate(shadow, state_size, NeuralNetwork.REPLAY_BATCH, gamma, 0.001);
+        batch = new ReplayBuffer(update.batch_size, state_size);
+        indices = new int[update.batch_size];
+        // the batch holds the sampled transitions in order, so transition i is at index i
+        order = new int[update.batch_size];
+        for (int i = 0; i < order.length; ++i)
+            order[i] = i;
+        published = new AtomicReference<>(FrozenNetwork.compile(shadow, model));
+    }
+
+    /**
+     * Add a transition, called from the driving thread.
+     */
+    public void add(double[] state, int state_offset, int action, double reward, double[] next_state,
+                    int next_offset) {
+        synchronized (buffer) {
+            buffer.add(state, state_offset, action, reward, next_state, next_offset);
+        }
+    }
+
+    /**
+     * The latest published network, it takes the raw features. It's shared, so compute with
+     * it through compute(input, output, scratch) with scratch space of your own.
+     */
+    public FrozenNetwork current() {
+        return published.get();
+    }
+
+    public int rounds() {
+        return rounds;
+    }
+
+    public int size() {
+        synchronized (buffer) {
+            return buffer.size();
+        }
+    }
+
+    public synchronized void start() {
+        if (thread != null)
+            return;
+
+        running = true;
+        thread = new Thread(this::loop, "q trainer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop training (finishing the current round) and copy the trained weights into the
+     * original network.
+     */
+    public synchronized void stop() {
+        if (thread == null)
+            return;
+
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        update.finishTraining();
+
+        double[] weights = shadow.getFlat().getWeights();
+        System.arraycopy(weights, 0, network.getFlat().getWeights(), 0, weights.length);
+    }
+
+    private void loop() {
+        while (running) {
+            if (!round()) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Train the shadow network on one sampled batch and publish it, false if there isn't
+     * enough experience yet.
+     */
+    private boolean round() {
+        synchronized (buffer) {
+            if (buffer.size() < min_transitions)
+                return false;
+            buffer.sample(random, indices);
+            batch.clear();
+            buffer.copyTo(indices, batch);
+        }
+
+        double[] errors = update.step(batch, order);
+        published.set(FrozenNetwork.compile(shadow, model));
+        rounds++;
+
+        // the driver may have overwritten some of the sampled slots in the meantime, they then
+        // get a priority that wasn't measured on them, which only affects how often they're seen
+        synchronized (buffer) {
+            for (int i = 0; i < errors.length; ++i)
+                buffer.updatePriority(indices[i], errors[i]);
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Reads the numeric csv files written by LoggingDriver straight from their bytes, without
+ * going through Strings or boxed values. Every complete row is handed to a RowHandler
+ * in a reused array.
+ *
+ * Numbers whose digits fit in 53 bits and with a small exponent (which covers everything
+ * Double.toString writes for the sensor values) are converted with a single rounding step, giving
+ * exactly the same double as Double.parseDouble; anything else (longer mantissas, NaN, ...) falls
+ * back to Double.parseDouble.
+ */
+public class CsvParser {
+
+    interface RowHandler {
+        void row(double[] values);
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    /**
+     * Parse the file at path, passing every row that has exactly `columns` fields to handler.
+     * Rows with a different number of fields (and the header, if skip_header) are skipped.
+     */
+    public static void parse(String path, int columns, boolean skip_header, RowHandler handler) throws IOException {
+        byte[] buffer = Files.readAllBytes(Paths.get(path));
+
+        int end = buffer.length;
+        int position = 0;
+        if (skip_header)
+            position = nextLine(buffer, 0, end);
+
+        double[] values = new double[columns];
+        while (position < end) {
+            int line_end = position;
+            while (line_end < end && buffer[line_end] != '\n')
+                line_end++;
+
+            int fields = parseLine(buffer, position, line_end, values);
+            if (fields == columns)
+                handler.row(values);
+
+            position = line_end + 1;
+        }
+    }
+
+    private static int nextLine(byte[] buffer, int position, int end) {
+        while (position < end && buffer[position] != '\n')
+            position++;
+
+        return position + 1;
+    }
+
+    /**
+     * Parse one line into values, returning the number of fields on it (which may be more than
+     * fit in values, in which case the extra ones are only counted).
+     */
+    private static int parseLine(byte[] buffer, int start, int end, double[] values) {
+        // ignore the \r of windows line endings and blank lines
+        if (end > start && buffer[end - 1] == '\r')
+            end--;
+        if (end == start)
+            return 0;
+
+        int fields = 0;
+        int field_start = start;
+        for (int i = start; i <= end; ++i) {
+            if (i == end || buffer[i] == ',') {
+                if (fields < values.length)
+                    values[fields] = parseDouble(buffer, field_start, i);
+                fields++;
+                field_start = i + 1;
+            }
+        }
+
+        return fields;
+    }
+
+    private static double parseDouble(byte[] buffer, int start, int end) {
+        // skip the spaces around values, as in "1.0, 2.0"
+        while (start < end && buffer[start] == ' ')
+            start++;
+        while (end > start && buffer[end - 1] == ' ')
+            end--;
+
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+            negative = buffer[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any_digit = false;
+
+        while (i < end && isDigit(buffer[i])) {
+            mantissa = mantissa * 10 + (buffer[i] - '0');
+            if (mantissa != 0)
+                digits++;
+            any_digit = true;
+            i++;
+        }
+        if (i < end && buffer[i] == '.') {
+            i++;
+            while (i < end && isDigit(buffer[i])) {
+                mantissa = mantissa * 10 + (buffer[i] - '0');
+                if (mantissa != 0)
+                    digits++;
+                exponent--;
+                any_digit = true;
+                i++;
+            }
+        }
+        if (any_digit && i < end && (buffer[i] == 'E' || buffer[i] == 'e')) {
+            i++;
+            boolean negative_exponent = false;
+            if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+                negative_exponent = buffer[i] == '-';
+                i++;
+            }
+            int e = 0;
+            boolean exponent_digit = false;
+            while (i < end && isDigit(buffer[i]) && e < 10000) {
+                e = e * 10 + (buffer[i] - '0');
+                exponent_digit = true;
+                i++;
+            }
+            if (!exponent_digit)
+                return slowParse(buffer, start, end);
+            exponent += negative_exponent ? -e : e;
+        }
+
+        if (!any_digit || i != end || digits > 18 || mantissa > (1L << 53) || exponent < -22 || exponent > 22)
+            return slowParse(buffer, start, end);
+
+        // both the mantissa and the power of ten are exact, so this rounds only once
+        double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static double slowParse(byte[] buffer, int start, int end) {
+        return Double.parseDouble(new String(buffer, start, end - start, StandardCharsets.US_ASCII));
+    }
+}
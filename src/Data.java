@@ -0,0 +1,57 @@
+import java.util.Arrays;
+
+/**
+ * Simple wrapper class to hold training data along with the desired outputs.
+ * The rows are stored back to back in one array each, so row i of the inputs is
+ * X[i * x_columns .. (i + 1) * x_columns). The arrays grow as rows are added and may
+ * be longer than rows * columns.
+ */
+public class Data {
+    public double[] X;
+    public double[] Y;
+    public int rows;
+    // the first row of every file the data was loaded from, null if unknown
+    public int[] file_starts;
+    public final int x_columns;
+    public final int y_columns;
+
+    public Data(int x_columns, int y_columns) {
+        this(x_columns, y_columns, 1024);
+    }
+
+    public Data(int x_columns, int y_columns, int capacity) {
+        this.x_columns = x_columns;
+        this.y_columns = y_columns;
+        X = new double[Math.max(capacity, 1) * x_columns];
+        Y = new double[Math.max(capacity, 1) * y_columns];
+    }
+
+    /**
+     * Add a row in the csv layout: the outputs followed by the inputs.
+     */
+    public void add(double[] row) {
+        if ((rows + 1) * x_columns > X.length) {
+            X = Arrays.copyOf(X, X.length * 2);
+            Y = Arrays.copyOf(Y, Y.length * 2);
+        }
+
+        System.arraycopy(row, 0, Y, rows * y_columns, y_columns);
+        System.arraycopy(row, y_columns, X, rows * x_columns, x_columns);
+        rows++;
+    }
+
+    /**
+     * Append all rows of other, which must have the same columns.
+     */
+    public void add(Data other) {
+        int total = rows + other.rows;
+        if (total * x_columns > X.length) {
+            X = Arrays.copyOf(X, Math.max(total, 2 * X.length / x_columns) * x_columns);
+            Y = Arrays.copyOf(Y, Math.max(total, 2 * Y.length / y_columns) * y_columns);
+        }
+
+        System.arraycopy(other.X, 0, X, rows * x_columns, other.rows * x_columns);
+        System.arraycopy(other.Y, 0, Y, rows * y_columns, other.rows * y_columns);
+        rows = total;
+    }
+}
@@ -1,138 +1,282 @@
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVRecord;
 import org.encog.util.arrayutil.NormalizeArray;
 import scr.Action;
 import scr.SensorModel;
 
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.Reader;
 import java.io.Serializable;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class DataModel implements Serializable {
+    private static final long serialVersionUID = 3331298504182861528L;
     private double[] means;
     private double[] stddevs;
+    // what the statistics were computed from, so new logs can be added to them later
+    private RunningStatistics statistics;
+    private HashSet<String> sources;
     public DataModel() {
     }
 
     /**
      * Load a csv file into input and output data.
-     * The first 3 columns are taken as input, the rest as output (the same format
-     * as used by the given dataset)
+     * The first 3 columns are taken as output, the rest as input (the same format
+     * as used by the given dataset). The mean and standard deviation of the inputs are
+     * accumulated while reading, after which the inputs are normalized in place.
+     *
+     * The files are parsed in parallel on the common fork-join pool; the rows still end up
+     * in the order of paths.
      */
     public Data load_data(List<String> paths) throws IOException {
-        ArrayList<double[]> outputs = new ArrayList<>();
-        ArrayList<double[]> inputs = new ArrayList<>();
+        List<Chunk> chunks = parse(paths, true, true);
 
-        for (String path : paths) {
-            Reader in = new FileReader(path);
-            Iterable<CSVRecord> records = CSVFormat.DEFAULT.parse(in);
-
-            // ugly boolean to skip the first row of the file, which contains the header
-            boolean is_header = true;
-            for (CSVRecord row : records) {
-                if (is_header) {
-                    is_header = false;
-                    continue;
-                }
-
-                // one row seems to be corrupt or something, so skip any rows that
-                // don't have the expected number of columns
-                if (row.size() != 25)
-                    continue;
+        statistics = new RunningStatistics(22);
+        for (Chunk chunk : chunks)
+            statistics.merge(chunk.statistics);
+        means = statistics.getMeans();
+        stddevs = statistics.getStddevs();
+        sources = new HashSet<>(paths);
 
-                double[] output_row = new double[3];
-                double[] input_row = new double[row.size() - 3];
+        Data data = concatenate(chunks);
+        for (int row = 0; row < data.rows; ++row)
+            normalize(data.X, row * data.x_columns);
 
-                for (int i = 0; i < row.size(); ++i) {
-                    if (i < 3)
-                        output_row[i] = (Double.parseDouble(row.get(i)));
-                    else
-                        input_row[i - 3] = (Double.parseDouble(row.get(i)));
-                }
+        return data;
+    }
 
-                outputs.add(output_row);
-                inputs.add(input_row);
-            }
+    /**
+     * Same as above, but keeps a binary copy of the normalized data and its statistics in cache,
+     * which is used instead of the csv files for as long as they don't change.
+     */
+    public Data load_data(List<String> paths, Path cache) throws IOException {
+        DatasetCache cached = DatasetCache.load(cache, DatasetCache.DRIVING, paths);
+        if (cached != null) {
+            means = cached.means;
+            stddevs = cached.stddevs;
+            statistics = new RunningStatistics(cached.data.rows, means, stddevs);
+            sources = new HashSet<>(paths);
+            return cached.data;
+        }
+
+        Data data = load_data(paths);
+        try {
+            DatasetCache.store(cache, DatasetCache.DRIVING, paths, data, means, stddevs);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
         }
 
-        double[][] input_array = inputs.toArray(new double[0][0]);
-        double[][] output_array = outputs.toArray(new double[0][0]);
+        return data;
+    }
+
+    /**
+     * The paths that aren't part of the statistics yet (all of them for models saved before
+     * the sources were recorded).
+     */
+    public List<String> new_sources(List<String> paths) {
+        List<String> added = new ArrayList<>();
+        for (String path : paths) {
+            if (sources == null || !sources.contains(path))
+                added.add(path);
+        }
+
+        return added;
+    }
+
+    /**
+     * Whether some of the files the statistics were computed from aren't among paths anymore.
+     */
+    public boolean lost_sources(List<String> paths) {
+        return sources != null && !new HashSet<>(paths).containsAll(sources);
+    }
+
+    /**
+     * Load paths like load_data(paths, cache), but only add the files returned by new_sources
+     * to the statistics instead of computing them again. The other files are read from the
+     * cache if it holds exactly them, so only the new files are parsed. If a file the
+     * statistics were computed from is gone they are computed again from all paths, since a
+     * file can't be taken out of them. The data of all files is returned, normalized with the
+     * updated statistics, and the cache is rebuilt for all paths.
+     */
+    public Data load_data_incremental(List<String> paths, Path cache) throws IOException {
+        HashSet<String> added = new HashSet<>(new_sources(paths));
+        List<String> known = new ArrayList<>();
+        List<String> fresh = new ArrayList<>();
+        for (String path : paths) {
+            if (added.contains(path))
+                fresh.add(path);
+            else
+                known.add(path);
+        }
 
-        // calculate the mean and the standard deviation of the data
-        means = new double[input_array[0].length];
-        stddevs = new double[input_array[0].length];
-        for (int column = 0; column < means.length; ++column) {
-            double mean = mean(input_array, column);
-            double stddev = std_deviation(input_array, column, mean);
+        // the known files as they were logged, undoing the normalization they were cached with
+        DatasetCache cached = DatasetCache.load(cache, DatasetCache.DRIVING, known);
+        Data old;
+        if (cached != null && cached.means != null) {
+            old = cached.data;
+            for (int row = 0; row < old.rows; ++row)
+                denormalize(old.X, row * old.x_columns, cached.means, cached.stddevs);
+        } else {
+            old = concatenate(parse(known, true, false));
+        }
+        List<Chunk> chunks = parse(fresh, true, true);
 
-            means[column] = mean;
-            stddevs[column] = stddev;
+        if (sources == null || lost_sources(paths)) {
+            statistics = new RunningStatistics(22);
+            for (int row = 0; row < old.rows; ++row)
+                statistics.add(old.X, row * old.x_columns);
         }
+        for (Chunk chunk : chunks)
+            statistics.merge(chunk.statistics);
+        means = statistics.getMeans();
+        stddevs = statistics.getStddevs();
+        sources = new HashSet<>(paths);
+
+        // the rows of every file in the order of paths
+        Data data = new Data(22, 3, old.rows + chunks.stream().mapToInt(chunk -> chunk.data.rows).sum());
+        data.file_starts = new int[paths.size()];
+        int next_known = 0;
+        int next_fresh = 0;
+        for (int i = 0; i < paths.size(); ++i) {
+            data.file_starts[i] = data.rows;
+            if (added.contains(paths.get(i))) {
+                data.add(chunks.get(next_fresh++).data);
+            } else {
+                int start = old.file_starts[next_known];
+                int end = ++next_known < known.size() ? old.file_starts[next_known] : old.rows;
+                System.arraycopy(old.X, start * old.x_columns, data.X, data.rows * data.x_columns,
+                        (end - start) * old.x_columns);
+                System.arraycopy(old.Y, start * old.y_columns, data.Y, data.rows * data.y_columns,
+                        (end - start) * old.y_columns);
+                data.rows += end - start;
+            }
+        }
+        for (int row = 0; row < data.rows; ++row)
+            normalize(data.X, row * data.x_columns);
 
-        for (double[] input : input_array) {
-            normalize(input);
+        try {
+            DatasetCache.store(cache, DatasetCache.DRIVING, paths, data, means, stddevs);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
         }
 
-        return new Data(input_array, output_array);
+        return data;
     }
 
     public Data load_q_data(List<String> paths) throws IOException {
-        ArrayList<double[]> outputs = new ArrayList<>();
-        ArrayList<double[]> inputs = new ArrayList<>();
+        return concatenate(parse(paths, false, false));
+    }
 
+    /**
+     * The driving logs as they are, without normalizing them or touching the statistics.
+     */
+    public Data load_raw_data(List<String> paths) throws IOException {
+        return concatenate(parse(paths, true, false));
+    }
+
+    /**
+     * The rows of a single file, and the statistics of its inputs.
+     */
+    private static class Chunk {
+        final Data data = new Data(22, 3);
+        final RunningStatistics statistics = new RunningStatistics(22);
+    }
+
+    private static List<Chunk> parse(List<String> paths, boolean skip_header, boolean statistics)
+            throws IOException {
+        List<Callable<Chunk>> tasks = new ArrayList<>();
         for (String path : paths) {
-            Reader in = new FileReader(path);
-            Iterable<CSVRecord> records = CSVFormat.DEFAULT.parse(in);
-
-            for (CSVRecord row : records) {
-                double[] output_row = new double[3];
-                double[] input_row = new double[row.size() - 3];
-
-                for (int i = 0; i < row.size(); ++i) {
-                    if (i < 3)
-                        output_row[i] = (Double.parseDouble(row.get(i)));
-                    else
-                        input_row[i - 3] = (Double.parseDouble(row.get(i)));
-                }
-
-                outputs.add(output_row);
-                inputs.add(input_row);
-            }
+            tasks.add(() -> {
+                Chunk chunk = new Chunk();
+                // one row seems to be corrupt or something, so the parser skips any rows that
+                // don't have the expected number of columns
+                CsvParser.parse(path, 25, skip_header, row -> {
+                    chunk.data.add(row);
+                    if (statistics)
+                        chunk.statistics.add(row, 3);
+                });
+                return chunk;
+            });
+        }
+
+        List<Chunk> chunks = new ArrayList<>();
+        try {
+            for (Future<Chunk> future : ForkJoinPool.commonPool().invokeAll(tasks))
+                chunks.add(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + paths);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
         }
 
-        double[][] input_array = inputs.toArray(new double[0][0]);
-        double[][] output_array = outputs.toArray(new double[0][0]);
+        return chunks;
+    }
+
+    private static Data concatenate(List<Chunk> chunks) {
+        int rows = 0;
+        for (Chunk chunk : chunks)
+            rows += chunk.data.rows;
 
-        return new Data(input_array, output_array);
+        Data data = new Data(22, 3, rows);
+        data.file_starts = new int[chunks.size()];
+        for (int i = 0; i < chunks.size(); ++i) {
+            data.file_starts[i] = data.rows;
+            data.add(chunks.get(i).data);
+        }
+
+        return data;
+    }
+
+    public Data load_q_data(List<String> paths, Path cache) throws IOException {
+        DatasetCache cached = DatasetCache.load(cache, DatasetCache.Q, paths);
+        if (cached != null)
+            return cached.data;
+
+        Data data = load_q_data(paths);
+        try {
+            DatasetCache.store(cache, DatasetCache.Q, paths, data, null, null);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+
+        return data;
     }
 
     /**
      * Format sensor output into an array with the same parameters as the training data.
      */
     public double[] format_input(SensorModel sensors, boolean normalize_data) {
-        ArrayList<Double> input_list = new ArrayList<>();
-        input_list.add(sensors.getSpeed());
-        input_list.add(sensors.getTrackPosition());
-        input_list.add(sensors.getAngleToTrackAxis());
+        double[] input = new double[22];
+        format_input(sensors, normalize_data, input, 0);
 
-        for (double sensor : sensors.getTrackEdgeSensors()) {
-            input_list.add(sensor);
-        }
+        return input;
+    }
 
-        double[] input = new double[22];
-        for (int i = 0; i < input.length; ++i)
-            input[i] = input_list.get(i);
+    /**
+     * Same as above, but writes the 22 features into an existing array starting at offset
+     * so the driver can reuse its buffers every tick.
+     */
+    public void format_input(SensorModel sensors, boolean normalize_data, double[] out, int offset) {
+        out[offset] = sensors.getSpeed();
+        out[offset + 1] = sensors.getTrackPosition();
+        out[offset + 2] = sensors.getAngleToTrackAxis();
 
-        if (normalize_data)
-            normalize(input);
+        double[] edges = sensors.getTrackEdgeSensors();
+        for (int i = 0; i < 19; ++i)
+            out[offset + 3 + i] = edges[i];
 
-        return input;
+        if (normalize_data)
+            normalize(out, offset);
     }
 
     public double[] format_q_input(SensorModel sensors, Action action, boolean normalize_data) {
@@ -147,6 +291,25 @@ public class DataModel implements Serializable {
         return out_array;
     }
 
+    public double[] getMeans() {
+        return means;
+    }
+
+    public double[] getStddevs() {
+        return stddevs;
+    }
+
+    /**
+     * Normalize with the given statistics, as stored in a DefaultDriverGenome. The logs they
+     * were computed from aren't known, so they can't be added to incrementally.
+     */
+    public void setStatistics(double[] means, double[] stddevs) {
+        this.means = means;
+        this.stddevs = stddevs;
+        statistics = null;
+        sources = null;
+    }
+
     public void normalize(double[] input) {
         for (int i = 0; i < input.length; ++i) {
             input[i] -= means[i];
@@ -154,34 +317,15 @@ public class DataModel implements Serializable {
         }
     }
 
-    private double mean(double[][] data, int column) {
-        double sum = 0;
-        for (int i = 0; i < data.length; ++i) {
-            sum += data[i][column];
-        }
-
-        return sum / data.length;
+    private static void denormalize(double[] input, int offset, double[] means, double[] stddevs) {
+        for (int i = 0; i < means.length; ++i)
+            input[offset + i] = input[offset + i] * stddevs[i] + means[i];
     }
 
-    private double std_deviation(double[][] data, int column, double mean) {
-        double sum = 0;
-        for (int i = 0; i < data.length; ++i) {
-            sum += Math.pow(data[i][column] - mean, 2);
+    public void normalize(double[] input, int offset) {
+        for (int i = 0; i < means.length; ++i) {
+            input[offset + i] -= means[i];
+            input[offset + i] /= stddevs[i];
         }
-
-        return Math.sqrt(sum / data.length);
-    }
-}
-
-/**
- * Simple wrapper class to hold training data along with the desired outputs.
- */
-class Data {
-    public double[][] X;
-    public double[][] Y;
-
-    public Data(double[][] X, double[][] Y) {
-        this.X = X;
-        this.Y = Y;
     }
 }
@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * A binary copy of the data loaded from a folder of csv logs, so it doesn't have to be parsed
+ * again on every training run. The file holds a header followed by the packed matrices:
+ *
+ *   magic, version, kind, rows, x_columns, y_columns
+ *   number of statistics columns, their means and standard deviations
+ *   number of source files, and for every file its path, size, modification time, crc32c and
+ *   the row its data starts at
+ *   X (rows * x_columns doubles), Y (rows * y_columns doubles)
+ *
+ * All values are big endian. The cache is only used if the list of source files and all their
+ * fingerprints still match; otherwise load returns null and the caller rebuilds it.
+ */
+public class DatasetCache {
+    public static final String FILENAME = ".dataset.cache";
+
+    // the normalized inputs of DataModel.load_data, or the raw rows of DataModel.load_q_data
+    public static final int DRIVING = 0;
+    public static final int Q = 1;
+
+    private static final int MAGIC = 0x54445331; // "TDS1"
+    private static final int VERSION = 2;
+
+    public final Data data;
+    public final double[] means;
+    public final double[] stddevs;
+
+    private DatasetCache(Data data, double[] means, double[] stddevs) {
+        this.data = data;
+        this.means = means;
+        this.stddevs = stddevs;
+    }
+
+    /**
+     * Load the cache at path if it exists and was built from exactly the given sources,
+     * return null otherwise.
+     */
+    public static DatasetCache load(Path path, int kind, List<String> sources) throws IOException {
+        if (!Files.isRegularFile(path))
+            return null;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 24 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getInt() != kind)
+                return null;
+
+            int rows = buffer.getInt();
+            int x_columns = buffer.getInt();
+            int y_columns = buffer.getInt();
+            if (rows < 0 || x_columns < 0 || y_columns < 0)
+                return null;
+
+            // the lengths are checked against what's left, so a corrupt one can't allocate
+            // a huge (or negative) array
+            double[] means = null;
+            double[] stddevs = null;
+            int statistics = buffer.getInt();
+            if (statistics < 0 || statistics > buffer.remaining() / 16)
+                return null;
+            if (statistics > 0) {
+                means = new double[statistics];
+                stddevs = new double[statistics];
+                buffer.asDoubleBuffer().get(means);
+                buffer.position(buffer.position() + statistics * 8);
+                buffer.asDoubleBuffer().get(stddevs);
+                buffer.position(buffer.position() + statistics * 8);
+            }
+
+            int files = buffer.getInt();
+            if (files != sources.size())
+                return null;
+            int[] file_starts = new int[files];
+            for (int i = 0; i < files; ++i) {
+                String source = sources.get(i);
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining())
+                    return null;
+                byte[] name = new byte[length];
+                buffer.get(name);
+                long size = buffer.getLong();
+                long modified = buffer.getLong();
+                long crc = buffer.getLong();
+                file_starts[i] = buffer.getInt();
+                if (file_starts[i] < (i > 0 ? file_starts[i - 1] : 0) || file_starts[i] > rows)
+                    return null;
+
+                Path file = Paths.get(source);
+                if (!source.equals(new String(name, StandardCharsets.UTF_8))
+                        || size != Files.size(file)
+                        || modified != Files.getLastModifiedTime(file).toMillis()
+                        || crc != checksum(file))
+                    return null;
+            }
+
+            long expected = buffer.position() + 8L * rows * (x_columns + y_columns);
+            if (expected != buffer.limit())
+                return null;
+
+            Data data = new Data(x_columns, y_columns, rows);
+            buffer.asDoubleBuffer().get(data.X, 0, rows * x_columns);
+            buffer.position(buffer.position() + rows * x_columns * 8);
+            buffer.asDoubleBuffer().get(data.Y, 0, rows * y_columns);
+            data.rows = rows;
+            data.file_starts = file_starts;
+
+            return new DatasetCache(data, means, stddevs);
+        } catch (BufferUnderflowException e) {
+            // truncated
+            return null;
+        }
+    }
+
+    /**
+     * Write data and its statistics (which may be null) to path. The file is written next to
+     * path first and then moved over it, so a half written cache is never picked up.
+     */
+    public static void store(Path path, int kind, List<String> sources, Data data, double[] means,
+                             double[] stddevs) throws IOException {
+        int statistics = means == null ? 0 : means.length;
+
+        byte[][] names = new byte[sources.size()][];
+        long header = 7 * 4 + statistics * 16L + 4;
+        for (int i = 0; i < names.length; ++i) {
+            names[i] = sources.get(i).getBytes(StandardCharsets.UTF_8);
+            header += 4 + names[i].length + 3 * 8 + 4;
+        }
+        long size = header + 8L * data.rows * (data.x_columns + data.y_columns);
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(kind);
+            buffer.putInt(data.rows);
+            buffer.putInt(data.x_columns);
+            buffer.putInt(data.y_columns);
+
+            buffer.putInt(statistics);
+            for (int i = 0; i < statistics; ++i)
+                buffer.putDouble(means[i]);
+            for (int i = 0; i < statistics; ++i)
+                buffer.putDouble(stddevs[i]);
+
+            buffer.putInt(names.length);
+            for (int i = 0; i < names.length; ++i) {
+                Path file = Paths.get(sources.get(i));
+                buffer.putInt(names[i].length);
+                buffer.put(names[i]);
+                buffer.putLong(Files.size(file));
+                buffer.putLong(Files.getLastModifiedTime(file).toMillis());
+                buffer.putLong(checksum(file));
+                buffer.putInt(data.file_starts == null ? 0 : data.file_starts[i]);
+            }
+
+            buffer.asDoubleBuffer().put(data.X, 0, data.rows * data.x_columns);
+            buffer.position(buffer.position() + data.rows * data.x_columns * 8);
+            buffer.asDoubleBuffer().put(data.Y, 0, data.rows * data.y_columns);
+            buffer.force();
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long checksum(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            CRC32C crc = new CRC32C();
+            if (channel.size() > 0) {
+                ByteBuffer contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                crc.update(contents);
+            }
+
+            return crc.getValue();
+        }
+    }
+}
@@ -8,33 +8,58 @@ import scr.Action;
 import scr.SensorModel;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 public class DefaultDriver extends AbstractDriver {
 
     public NeuralNetwork neuralNetwork;
     private double lastRightTrackEdge;
     private double lastLeftTrackEdge;
-    private List<double[]> history;
     private Random rng;
+
+    // preallocated per-driver buffers so the control loop doesn't allocate every tick
+    private double[] history;
+    private int history_head;
+    private int history_count;
+    private double[] network_input;
+    private double[] network_output;
+    private double[] q_input;
+    private double[] q_current;
+    private double[] q_next;
+    private int previous_action;
+    private Action action;
+
+    // track routing, resolved once when the track name changes rather than every tick
+    private String routed_track;
+    private boolean dirty;
+
     public int n_history;
     public double[] q_history;
     public double previous_reward;
-    public List<Double[]> experience;
+    // the transitions seen while exploring; set by the algorithm, which keeps it across races
+    // and may share it between drivers, or allocated once the driver explores
+    public ReplayBuffer experience;
+    public static final int EXPERIENCE_CAPACITY = 1 << 15;
+    // set by the algorithm to train the Q network in the background during the race instead,
+    // the drivers of a race share it and the algorithm keeps the weights when the race ends
+    public BackgroundQTrainer q_trainer;
+    // this driver's scratch space for computing with the trainer's published networks
+    private double[][] q_scratch;
+    // with log_experience set the transitions are also appended to a log in q_data or q_dirt
+    public boolean log_experience = true;
+    private TransitionLog.Writer experience_log;
     public double epsilon = 0.0;
-    public double gamma = 0.9;
+    public static final double GAMMA = 0.9;
+    public double gamma = GAMMA;
+
+    // time spent per tick, TORCS drops the action if the driver takes longer than about 10 ms
+    public LatencyRecorder latency = new LatencyRecorder(10_000_000L);
 
     public DefaultDriver() {
         initialize();
 
         rng = new Random();
-        history = new ArrayList<>();
-        experience = new ArrayList<>();
 
         //train(0, 12, 1000);
         load();
@@ -43,16 +68,96 @@ public class DefaultDriver extends AbstractDriver {
     public void load() {
         neuralNetwork = NeuralNetwork.loadGenome();
         n_history = neuralNetwork.history;
+        allocateBuffers();
+    }
+
+    /**
+     * Drive with the given network instead of the stored one.
+     */
+    public void setNeuralNetwork(NeuralNetwork neuralNetwork) {
+        this.neuralNetwork = neuralNetwork;
+        n_history = neuralNetwork.history;
+        allocateBuffers();
+    }
+
+    /**
+     * (Re)allocate the buffers used by the control loop. The history is a ring buffer
+     * holding the last n_history + 1 frames of 22 features each. The frames are kept
+     * unnormalized, the compiled networks do the normalization.
+     */
+    private void allocateBuffers() {
+        q_history = null;
+        q_scratch = null;
+        history = new double[(n_history + 1) * 22];
+        history_head = 0;
+        history_count = 0;
+        network_input = new double[(n_history + 1) * 22];
+        network_output = new double[3];
+        q_input = new double[22];
+        q_current = new double[neuralNetwork.acc_offsets.length];
+        q_next = new double[22];
+        action = new Action();
+    }
+
+    /**
+     * Reset the reused action to the same state as a freshly constructed one.
+     */
+    private Action clearAction() {
+        action.accelerate = 0;
+        action.brake = 0;
+        action.clutch = 0;
+        action.gear = 0;
+        action.steering = 0;
+        action.restartRace = false;
+        action.focus = 360;
+
+        return action;
     }
 
     public void train(int n_history, int hidden, int epochs) {
+        train(n_history, hidden, epochs, false);
+    }
+
+    /**
+     * Train new networks, saving a checkpoint every 100 epochs. With resume, an interrupted
+     * run with the same settings continues from its last checkpoint.
+     */
+    public void train(int n_history, int hidden, int epochs, boolean resume) {
         int input_size = 22 + (22*n_history);
 
         neuralNetwork = new NeuralNetwork(hidden, n_history);
+        neuralNetwork.checkpoint_interval = 100;
+        neuralNetwork.resume = resume;
         System.out.printf("Input size: %d, hidden layer size: %d\n", neuralNetwork.road_network.getInputCount(),
                 neuralNetwork.road_network.getLayerNeuronCount(1));
         neuralNetwork.train(epochs, "train_data", "dirt_data");
         neuralNetwork.storeGenome();
+        this.n_history = n_history;
+        allocateBuffers();
+    }
+
+    /**
+     * Same as above, but trains with mini-batches until the validation error stops improving.
+     */
+    public void train(int n_history, int hidden, MiniBatchTrainer trainer) {
+        neuralNetwork = new NeuralNetwork(hidden, n_history);
+        neuralNetwork.train(trainer, "train_data", "dirt_data");
+        neuralNetwork.storeGenome();
+        this.n_history = n_history;
+        allocateBuffers();
+    }
+
+    /**
+     * Fine-tune the stored networks on the logs recorded since they were trained, which takes
+     * seconds instead of a full training run.
+     */
+    public void train_incremental() {
+        MiniBatchTrainer trainer = new MiniBatchTrainer();
+        trainer.learning_rate = 0.0005;
+        trainer.max_epochs = 50;
+        trainer.patience = 5;
+        neuralNetwork.train_incremental(trainer, 1.0, "train_data", "dirt_data");
+        neuralNetwork.storeGenome();
     }
 
     private void initialize() {
@@ -66,6 +171,9 @@ public class DefaultDriver extends AbstractDriver {
     public void loadGenome(IGenome genome) {
         if (genome instanceof DefaultDriverGenome) {
             DefaultDriverGenome myGenome = (DefaultDriverGenome) genome;
+            // an empty genome keeps the network the driver was made with
+            if (!myGenome.isEmpty())
+                setNeuralNetwork(myGenome.toNeuralNetwork());
         } else {
             System.err.println("Invalid Genome assigned");
         }
@@ -86,30 +194,49 @@ public class DefaultDriver extends AbstractDriver {
     }
 
     public boolean trackIsDirty() {
-        return getTrackName().toLowerCase().contains("dirt") || getTrackName().toLowerCase().contains("mixed");
-    }
+        String track = getTrackName();
+        if (track != routed_track) {
+            dirty = isDirty(track);
+            routed_track = track;
+        }
 
-    public Action getActionFromNetwork(SensorModel sensors) {
-        DataModel model = trackIsDirty() ? neuralNetwork.dirt_model : neuralNetwork.road_model;
+        return dirty;
+    }
 
-        history.add(model.format_input(sensors, true));
+    public static boolean isDirty(String track) {
+        String name = track.toLowerCase();
+        return name.contains("dirt") || name.contains("mixed");
+    }
 
-        if (history.size() < n_history + 1)
-            return new Action();
-        if (history.size() > n_history + 1)
-            history.remove(0);
+    public Action getActionFromNetwork(SensorModel sensors) {
+        boolean dirty = trackIsDirty();
+        DataModel model = dirty ? neuralNetwork.dirt_model : neuralNetwork.road_model;
+
+        int frames = n_history + 1;
+        model.format_input(sensors, false, history, history_head * 22);
+        history_head = (history_head + 1) % frames;
+        if (history_count < frames)
+            history_count++;
+
+        if (history_count < frames)
+            return clearAction();
+
+        // unroll the ring buffer into the network input, oldest frame first
+        for (int i = 0; i < frames; ++i) {
+            int frame = (history_head + i) % frames;
+            System.arraycopy(history, frame * 22, network_input, i * 22, 22);
+        }
 
-        double[] output;
-        if (trackIsDirty())
-            output = neuralNetwork.getDirtOutput(history);
+        if (dirty)
+            neuralNetwork.getDirtOutput(network_input, network_output);
         else
-            output = neuralNetwork.getRoadOutput(history);
+            neuralNetwork.getRoadOutput(network_input, network_output);
 
-        Action action = new Action();
+        Action action = clearAction();
 
-        action.accelerate = output[0];
-        action.brake = output[1];
-        action.steering = output[2];
+        action.accelerate = network_output[0];
+        action.brake = network_output[1];
+        action.steering = network_output[2];
 
         return action;
     }
@@ -119,68 +246,135 @@ public class DefaultDriver extends AbstractDriver {
         return "The Venga Bus";
     }
 
-    private int getBestQIndex(double[] input) {
-        double[] q_values = trackIsDirty() ? neuralNetwork.getQDirtOutput(input) : neuralNetwork.getQOutput(input);
-        int best_idx = IntStream.range(0, q_values.length).boxed()
-                .reduce((x, y) -> q_values[y] >= q_values[x] ? y : x)
-                //.max(Comparator.comparingDouble(x -> q_values[x]))
-                .get();
+    private double[] getQValues(double[] input, double[] output) {
+        if (q_trainer != null) {
+            // the published network never changes, only the scratch space is per driver
+            FrozenNetwork q = q_trainer.current();
+            if (q_scratch == null)
+                q_scratch = q.scratch();
+            q.compute(input, output, q_scratch);
+        } else if (trackIsDirty())
+            neuralNetwork.getQDirtOutput(input, output);
+        else
+            neuralNetwork.getQOutput(input, output);
 
-        return best_idx;
+        return output;
     }
 
-    private double getBestQValue(double[] input) {
-        double[] q_values = trackIsDirty() ? neuralNetwork.getQDirtOutput(input) : neuralNetwork.getQOutput(input);
-        return Arrays.stream(q_values).max().getAsDouble();
+    private static int getBestQIndex(double[] q_values) {
+        int best_idx = 0;
+        for (int i = 1; i < q_values.length; ++i) {
+            if (q_values[i] >= q_values[best_idx])
+                best_idx = i;
+        }
+
+        return best_idx;
     }
 
+    /**
+     * One tick: the features are formatted once (into the history), each network is evaluated
+     * once, and the q values of the previous state are carried over from the previous tick.
+     */
     @Override
     public Action control(SensorModel sensors) {
+        boolean dirty = trackIsDirty();
+        DataModel model = dirty ? neuralNetwork.dirt_model : neuralNetwork.road_model;
         Action action = getActionFromNetwork(sensors);
 
-        double[] input;
-        if (trackIsDirty())
-            input = neuralNetwork.dirt_model.format_input(sensors, true);
-        else
-            input = neuralNetwork.road_model.format_input(sensors, true);
+        // the newest history frame holds the same features the q network takes
+        int newest = (history_head + n_history) % (n_history + 1);
+        System.arraycopy(history, newest * 22, q_input, 0, 22);
+        double[] q_values = getQValues(q_input, q_current);
 
         int idx;
         if (rng.nextDouble() <= epsilon)
             idx = rng.nextInt(neuralNetwork.acc_offsets.length);
         else
-            idx = getBestQIndex(input);
+            idx = getBestQIndex(q_values);
 
         if (q_history == null) {
             previous_reward = getReward(sensors);
-            q_history = input;
+            q_history = q_input.clone();
+            model.normalize(q_history, 0);
+            previous_action = idx;
 
             return action;
         }
 
         action.accelerate += neuralNetwork.acc_offsets[idx];
 
-        // update the previous iteration's q values
-        double[] q_values = neuralNetwork.getQOutput(q_history);
-        q_values[idx] = getReward(sensors) + gamma * getBestQValue(input);
-        Double[] sample = Stream.concat(Arrays.stream(q_values).boxed(), Arrays.stream(q_history).boxed())
-                .toArray(Double[]::new);
-        experience.add(sample);
+        // remember the transition from the previous state; experience is only gathered while
+        // exploring, so plain races don't pay for the buffer
+        double reward = getReward(sensors);
+        System.arraycopy(q_input, 0, q_next, 0, q_input.length);
+        model.normalize(q_next, 0);
+        if (epsilon > 0 && log_experience)
+            logTransition(dirty, reward);
+
+        if (epsilon > 0 && q_trainer != null) {
+            q_trainer.add(q_history, 0, previous_action, reward, q_next, 0);
+        } else if (epsilon > 0) {
+            if (experience == null)
+                experience = new ReplayBuffer(EXPERIENCE_CAPACITY, 22);
+            synchronized (experience) {
+                experience.add(q_history, 0, previous_action, reward, q_next, 0);
+            }
+        }
 
-        previous_reward = getReward(sensors);
-        q_history = input;
+        previous_reward = reward;
+        previous_action = idx;
+        double[] tmp = q_history;
+        q_history = q_next;
+        q_next = tmp;
 
         // recovery if the car stalls
-        if (!trackIsDirty() && sensors.getSpeed() < 60) {
+        if (!dirty && sensors.getSpeed() < 60) {
             action.accelerate = 1;
             action.brake = 0;
         }
 
-        if (trackIsDirty() && sensors.getZSpeed() > 10)
+        if (dirty && sensors.getZSpeed() > 10)
             action.accelerate = 0;
 
         return action;
     }
 
+    private void logTransition(boolean dirty, double reward) {
+        try {
+            if (experience_log == null) {
+                String name = String.format("%s/%d-%08x%s", dirty ? "q_dirt" : "q_data",
+                        System.currentTimeMillis(), rng.nextInt(), TransitionLog.EXTENSION);
+                experience_log = new TransitionLog.Writer(Paths.get(name), 22);
+            }
+            experience_log.append(q_history, 0, previous_action, reward, q_next, 0);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            log_experience = false;
+            // don't leave the channel open until exit, nothing more is appended to it
+            if (experience_log != null) {
+                try {
+                    experience_log.close();
+                } catch (IOException closing) {
+                    System.out.println(closing.getMessage());
+                }
+                experience_log = null;
+            }
+        }
+    }
+
+    /**
+     * The per-tick entry point used by the client: control() followed by the extras (gearbox,
+     * ABS, ...). Timed as a whole since that is what the simulator waits for.
+     */
+    @Override
+    public Action determineAction(SensorModel sensors) {
+        long start = System.nanoTime();
+        Action action = super.determineAction(sensors);
+        latency.record(System.nanoTime() - start);
+
+        return action;
+    }
+
     @Override
     public Action controlWarmUp(SensorModel sensors) {
         return control(sensors);
@@ -239,26 +433,17 @@ public class DefaultDriver extends AbstractDriver {
 
     @Override
     public void exit() {
-        /*
-        String fname;
-        if (trackIsDirty())
-            fname = String.format("q_dirt/%f.csv", rng.nextDouble());
-        else
-            fname = String.format("q_data/%f.csv", rng.nextDouble());
-
-        List<String> stringdata = new ArrayList<>();
-        for (Double[] row : experience) {
-            String s = Arrays.stream(row)
-                    .map(String::valueOf)
-                    .collect(Collectors.joining(", "));
-            stringdata.add(s);
-        }
-
-        try {
-            Files.write(Paths.get(fname), stringdata);
-        } catch (IOException e) {
-            System.out.println(e.getMessage());
+        System.out.printf("%s latency: %s\n", getDriverName(), latency.summary());
+
+        if (experience_log != null) {
+            try {
+                experience_log.close();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+            experience_log = null;
         }
-        */
+        // the experience is replayed, or the background training kept, by the algorithm, once
+        // for all drivers of the race
     }
 }
\ No newline at end of file
@@ -2,10 +2,9 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -27,6 +26,14 @@ public class DefaultDriverAlgorithm extends AbstractAlgorithm {
     String track = "aalborg";
     private String tracktype = "road";
 
+    // what the exploring drivers saw on road and on dirt, kept across races so every retrain
+    // replays the transitions of all earlier races as well
+    private transient ReplayBuffer road_experience;
+    private transient ReplayBuffer dirt_experience;
+
+    static String[] road_tracks = {"aalborg", "corkscrew", "brondehach", "alpine-1", "alpine-2", "forza", "ruudskogen"};
+    static String[] dirt_tracks = {"dirt-1", "dirt-2", "mixed-1", "mixed-2"};
+
     public Class<? extends Driver> getDriverClass() {
         return DefaultDriver.class;
     }
@@ -54,6 +61,13 @@ public class DefaultDriverAlgorithm extends AbstractAlgorithm {
 
     // disables output prints and returns the laptime
     public double[] run_with_results(int n_drivers, double epsilon) {
+        return run_with_results(n_drivers, epsilon, false);
+    }
+
+    /**
+     * Same as above, with online the drivers train their Q network while racing.
+     */
+    public double[] run_with_results(int n_drivers, double epsilon, boolean online) {
         // backup stdout
         PrintStream stdout = System.out;
 
@@ -63,6 +77,21 @@ public class DefaultDriverAlgorithm extends AbstractAlgorithm {
         } catch (FileNotFoundException e) {
         }
 
+        // the drivers add to one buffer, which is replayed once after the race, or to one
+        // background trainer, whose weights are kept once after the race
+        boolean dirt = DefaultDriver.isDirty(track);
+        boolean learn = epsilon > 0 && !use_logging;
+        ReplayBuffer experience = learn && !online ? experience(dirt) : null;
+        NeuralNetwork network = learn ? NeuralNetwork.loadGenome() : null;
+        BackgroundQTrainer trainer = null;
+        if (learn && online) {
+            trainer = new BackgroundQTrainer(dirt ? network.dirt_q : network.q_network,
+                    dirt ? network.dirt_model : network.road_model, DefaultDriver.EXPERIENCE_CAPACITY, 22,
+                    DefaultDriver.GAMMA);
+            trainer.start();
+        }
+        BackgroundQTrainer q_trainer = trainer;
+
         drivers = new DefaultDriverGenome[n_drivers];
         for (int i = 0; i < n_drivers; ++i) {
             DefaultDriverGenome genome = new DefaultDriverGenome();
@@ -78,40 +107,66 @@ public class DefaultDriverAlgorithm extends AbstractAlgorithm {
         if (use_logging)
             driver_factory = () -> new LoggingDriver(human);
         else
-            driver_factory = () -> {DefaultDriver d = new DefaultDriver(); d.epsilon = epsilon; return d;};
+            driver_factory = () -> {
+                DefaultDriver d = new DefaultDriver();
+                d.epsilon = epsilon;
+                d.q_trainer = q_trainer;
+                d.experience = experience;
+                return d;
+            };
 
         results = race.runRace(drivers, with_gui, driver_factory);
 
         // restore stdout
         System.setOut(stdout);
 
+        if (trainer != null) {
+            trainer.stop();
+            System.out.printf("%d background training rounds\n", trainer.rounds());
+            network.thaw();
+            network.storeGenome();
+        } else if (experience != null && experience.size() > 0) {
+            network.retrain_q(experience, dirt, DefaultDriver.GAMMA, new Random());
+            network.storeGenome();
+        }
+
         return results;
     }
 
+    private ReplayBuffer experience(boolean dirt) {
+        if (dirt && dirt_experience == null)
+            dirt_experience = new ReplayBuffer(DefaultDriver.EXPERIENCE_CAPACITY, 22);
+        else if (!dirt && road_experience == null)
+            road_experience = new ReplayBuffer(DefaultDriver.EXPERIENCE_CAPACITY, 22);
+
+        return dirt ? dirt_experience : road_experience;
+    }
+
     public void run(boolean continue_from_checkpoint) {
-        if (!continue_from_checkpoint) {
+        // a checkpoint brings its genome along, a new run starts from the stored network
+        if (!continue_from_checkpoint || drivers[0] == null || drivers[0].isEmpty()) {
             //init NN
-            DefaultDriverGenome genome = new DefaultDriverGenome();
+            DefaultDriverGenome genome = new DefaultDriverGenome(NeuralNetwork.loadGenome());
             drivers[0] = genome;
+        }
 
-            //Start a race
-            DefaultRace race = new DefaultRace();
-            race.setTrack(track, tracktype);
-            race.laps = 1;
+        //Start a race
+        DefaultRace race = new DefaultRace();
+        race.setTrack(track, tracktype);
+        race.laps = 1;
 
-            // create the appropriate driver factory so we can feed it into the racing function
-            Supplier<DefaultDriver> driver_factory;
-            if (use_logging)
-                driver_factory = () -> new LoggingDriver(human);
-            else
-                driver_factory = () -> new DefaultDriver();
+        // create the appropriate driver factory so we can feed it into the racing function
+        Supplier<DefaultDriver> driver_factory;
+        if (use_logging)
+            driver_factory = () -> new LoggingDriver(human);
+        else
+            driver_factory = () -> new DefaultDriver();
 
 
-            results = race.runRace(drivers, with_gui, driver_factory);
+        results = race.runRace(drivers, with_gui, driver_factory);
 
-            // Save genome/nn
-            DriversUtils.storeGenome(drivers[0]);
-        }
+        // Save genome/nn
+        DriversUtils.storeGenome(drivers[0]);
         // create a checkpoint this allows you to continue this run later
         DriversUtils.createCheckpoint(this);
         //DriversUtils.clearCheckpoint();
@@ -128,6 +183,15 @@ public class DefaultDriverAlgorithm extends AbstractAlgorithm {
 		 * Start with -show to show the best found
 		 * Start with -show-race to show a race with 10 copies of the best found
 		 * Start with -human to race against the best found
+		 * Start with -evolve to evolve the road network on the road tracks in TORCS, or -evolve -simulate in the replay simulator
+		 * Add -screen to -evolve to only race the candidates that do best on a short simulated run
+		 * Add -continue to -evolve to continue an interrupted evolution from its checkpoint
+		 * Start with -simulate to drive the recorded tracks in the replay simulator (no TORCS needed)
+		 * Start with -sweep to train networks for a range of hidden and history sizes and keep the best
+		 * Start with -incremental to fine-tune the stored networks on newly logged tracks
+		 * Start with -train to train new networks, and -train -resume to continue an interrupted run
+		 * Start with -qlearning to learn the Q networks, and -qlearning -online to train them while racing
+		 * Start with -replay to retrain the Q networks from the transitions logged while learning
 		 *
 		 */
         DefaultDriverAlgorithm algorithm = new DefaultDriverAlgorithm();
@@ -143,9 +207,24 @@ public class DefaultDriverAlgorithm extends AbstractAlgorithm {
         } else if (args.length > 0 && args[0].equals("-test")) {
             run_all_tracks(false, false, 1, false);
         } else if (args.length > 0 && args[0].equals("-evolve")) {
-            evolve();
+            List<String> flags = Arrays.asList(args);
+            evolve(flags.contains("-simulate"), flags.contains("-screen"), flags.contains("-continue"));
+        } else if (args.length > 0 && args[0].equals("-simulate")) {
+            run_simulated_tracks(1);
+        } else if (args.length > 0 && args[0].equals("-train")) {
+            new DefaultDriver().train(0, 16, 2000, args.length > 1 && args[1].equals("-resume"));
+        } else if (args.length > 0 && args[0].equals("-incremental")) {
+            new DefaultDriver().train_incremental();
+        } else if (args.length > 0 && args[0].equals("-sweep")) {
+            new HyperparameterSweep().sweep();
         } else if (args.length > 0 && args[0].equals("-qlearning")) {
-            run_all_tracks(false, false, 1, true);
+            run_all_tracks(false, false, 1, true, args.length > 1 && args[1].equals("-online"));
+        } else if (args.length > 0 && args[0].equals("-replay")) {
+            DefaultDriver driver = new DefaultDriver();
+            Random random = new Random();
+            driver.neuralNetwork.retrain_q_logs("q_data", false, driver.gamma, random, DefaultDriver.EXPERIENCE_CAPACITY);
+            driver.neuralNetwork.retrain_q_logs("q_dirt", true, driver.gamma, random, DefaultDriver.EXPERIENCE_CAPACITY);
+            driver.neuralNetwork.storeGenome();
         } else if (args.length > 0 && args[0].equals("-continue")) {
             if (DriversUtils.hasCheckpoint()) {
                 DriversUtils.loadCheckpoint().run(true);
@@ -158,6 +237,11 @@ public class DefaultDriverAlgorithm extends AbstractAlgorithm {
     }
 
     public static void run_all_tracks(boolean use_logging, boolean with_gui, int n_drivers, boolean qlearn) {
+        run_all_tracks(use_logging, with_gui, n_drivers, qlearn, false);
+    }
+
+    public static void run_all_tracks(boolean use_logging, boolean with_gui, int n_drivers, boolean qlearn,
+                                      boolean online) {
         // uncomment to train a new network
         //new DefaultDriver().train(0, 16, 2000);
         DefaultDriverAlgorithm algorithm = new DefaultDriverAlgorithm();
@@ -165,30 +249,18 @@ public class DefaultDriverAlgorithm extends AbstractAlgorithm {
         algorithm.with_gui = with_gui;
         algorithm.human = false;
 
-        String[] road_tracks = {"aalborg", "corkscrew", "brondehach", "alpine-1", "alpine-2", "forza", "ruudskogen"};
-        String[] dirt_tracks = {"dirt-1", "dirt-2", "mixed-1", "mixed-2"};
-
         double epsilon = qlearn ? 1.0 : 0.0;
         for (int i = 0; i < (qlearn ? 10 : 1); ++i) {
-            if (qlearn) {
-                try {
-                    for (Path file : Files.list(Paths.get("q_data")).collect(Collectors.toList()))
-                        Files.delete(file);
-                    for (Path file : Files.list(Paths.get("q_dirt")).collect(Collectors.toList()))
-                        Files.delete(file);
-                } catch (IOException e) {
-                    System.out.println(e.getMessage());
-                }
-
+            // the Q networks are retrained from the replay buffers after every race
+            if (qlearn)
                 epsilon = Math.max(0.1, epsilon - 0.1);
-            }
 
             System.out.printf("Epsilon: %f\n", epsilon);
 
             for (String track : road_tracks) {
                 algorithm.track = track;
                 algorithm.tracktype = "road";
-                double[] laptimes = algorithm.run_with_results(n_drivers, epsilon);
+                double[] laptimes = algorithm.run_with_results(n_drivers, epsilon, online);
                 System.out.printf("%s: %s\n", track,
                         Arrays.stream(laptimes).boxed()
                                 .map(x -> String.format("%.2f", x))
@@ -198,30 +270,61 @@ public class DefaultDriverAlgorithm extends AbstractAlgorithm {
             for (String track : dirt_tracks) {
                 algorithm.track = track;
                 algorithm.tracktype = "dirt";
-                double[] laptimes = algorithm.run_with_results(n_drivers, epsilon);
+                double[] laptimes = algorithm.run_with_results(n_drivers, epsilon, online);
                 System.out.printf("%s: %s\n", track,
                         Arrays.stream(laptimes).boxed()
                                 .map(x -> String.format("%.2f", x))
                                 .collect(Collectors.joining(", ")));
             }
 
-            if (qlearn) {
+        }
+    }
+
+    /**
+     * Drive every track that has a recording in the replay simulator instead of TORCS.
+     */
+    public static void run_simulated_tracks(int laps) {
+        for (String[] tracks : new String[][]{road_tracks, dirt_tracks}) {
+            for (String track : tracks) {
+                ReplaySimulator simulator;
                 try {
-                    Thread.sleep(2000);
-                } catch (InterruptedException e) {
+                    simulator = ReplaySimulator.load(track);
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                    continue;
                 }
 
-                DefaultDriver d = new DefaultDriver();
-                d.neuralNetwork.retrain_q_road(500);
-                d.neuralNetwork.retrain_q_dirt(500);
-                d.neuralNetwork.storeGenome();
-            }
+                DefaultDriver driver = new DefaultDriver();
+                long start = System.nanoTime();
+                ReplaySimulator.Result result = simulator.race(driver, laps, 20000 * laps);
+                double seconds = (System.nanoTime() - start) / 1e9;
 
+                System.out.println(result);
+                System.out.printf("    %.0f ticks/s, latency: %s\n", result.ticks / seconds, driver.latency.summary());
+            }
         }
     }
 
     public static void evolve() {
-        EvolutionaryStuff e = new EvolutionaryStuff();
-        e.evolve("aalborg");
+        evolve(false, false, false);
+    }
+
+    /**
+     * The fitness is the sum of the lap times on all road tracks. With simulate the candidates
+     * are raced in the replay simulator, on all cores at once, and races are given up as soon as
+     * they fall behind the best network so far.
+     * With screen every generation is first driven for 2000 ticks in the replay simulator, and
+     * only the best few are raced. With resume an interrupted evolution with the same settings
+     * continues from the generation it was checkpointed after.
+     */
+    public static void evolve(boolean simulate, boolean screen, boolean resume) {
+        EvolutionaryStuff e = simulate ? EvolutionaryStuff.simulated(1) : new EvolutionaryStuff();
+        e.resume = resume;
+        if (screen)
+            e.surrogates = tracks -> EvolutionaryStuff.simulatedEvaluator(tracks, 1, 2000);
+        e.evolve(road_tracks);
+
+        // so -show and -show-race drive the evolved network
+        DriversUtils.storeGenome(new DefaultDriverGenome(NeuralNetwork.loadGenome()));
     }
 }
\ No newline at end of file
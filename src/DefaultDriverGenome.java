@@ -1,7 +1,202 @@
-
 import cicontest.torcs.genome.IGenome;
+import org.encog.neural.networks.BasicNetwork;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+/**
+ * Everything a DefaultDriver needs to drive: the flat weights of its four networks, the
+ * normalization of its two data models, its history and its acceleration offsets. The
+ * networks themselves are rebuilt from their layer sizes, so a genome can be installed
+ * without reading the memory file.
+ *
+ * It is written by hand as one block of plain arrays rather than as the object graphs of the
+ * Encog networks, which keeps checkpoints small and quick to write. An empty genome (made with the
+ * default constructor) leaves the driver with the network it loaded itself.
+ */
 public class DefaultDriverGenome implements IGenome {
     private static final long serialVersionUID = 6534186543165341653L;
-}
+    private static final int VERSION = 1;
+
+    private transient int history;
+    private transient double[] acc_offsets;
+    // road, dirt, Q and dirt Q network
+    private transient int[][] layers;
+    private transient double[][] weights;
+    // road and dirt model, null if the model has no statistics
+    private transient double[][] means;
+    private transient double[][] stddevs;
+
+    public DefaultDriverGenome() {
+    }
+
+    public DefaultDriverGenome(NeuralNetwork network) {
+        BasicNetwork[] networks = networks(network);
+        DataModel[] models = {network.road_model, network.dirt_model};
+
+        history = network.history;
+        acc_offsets = network.acc_offsets.clone();
+        layers = new int[networks.length][];
+        weights = new double[networks.length][];
+        for (int i = 0; i < networks.length; ++i) {
+            layers[i] = networks[i].getFlat().getLayerCounts().clone();
+            weights[i] = networks[i].getFlat().getWeights().clone();
+        }
+
+        means = new double[models.length][];
+        stddevs = new double[models.length][];
+        for (int i = 0; i < models.length; ++i) {
+            means[i] = models[i].getMeans() == null ? null : models[i].getMeans().clone();
+            stddevs[i] = models[i].getStddevs() == null ? null : models[i].getStddevs().clone();
+        }
+    }
+
+    private static BasicNetwork[] networks(NeuralNetwork network) {
+        return new BasicNetwork[]{network.road_network, network.dirt_network, network.q_network, network.dirt_q};
+    }
+
+    public boolean isEmpty() {
+        return weights == null;
+    }
+
+    /**
+     * A new NeuralNetwork with the weights and normalization of this genome.
+     */
+    public NeuralNetwork toNeuralNetwork() {
+        if (isEmpty())
+            throw new IllegalStateException("The genome is empty");
+
+        // the networks only differ in their weights from freshly made ones; the layer counts
+        // include the bias neurons, so the hidden layer of the road network has one less
+        NeuralNetwork network = new NeuralNetwork(layers[0][1] - 1, history);
+        network.acc_offsets = acc_offsets.clone();
+        BasicNetwork[] networks = networks(network);
+        for (int i = 0; i < networks.length; ++i) {
+            if (!Arrays.equals(networks[i].getFlat().getLayerCounts(), layers[i]))
+                throw new IllegalStateException("The genome's network " + i + " has layers "
+                        + Arrays.toString(layers[i]));
+            System.arraycopy(weights[i], 0, networks[i].getFlat().getWeights(), 0, weights[i].length);
+        }
+
+        DataModel[] models = {network.road_model, network.dirt_model};
+        for (int i = 0; i < models.length; ++i) {
+            if (means[i] != null)
+                models[i].setStatistics(means[i].clone(), stddevs[i].clone());
+        }
 
+        return network;
+    }
+
+    /**
+     * The genome as a single block: version, history, acceleration offsets, then per network
+     * its layer counts and weights, then per model its means and standard deviations. Arrays
+     * are prefixed with their length, -1 for null. The memory container stores genomes as XML,
+     * where one block becomes a single base64 string instead of an element per number.
+     */
+    private byte[] toBytes() {
+        // version, history, the offsets with their length, the number of networks
+        int size = 16 + 8 * acc_offsets.length;
+        for (int i = 0; i < weights.length; ++i)
+            size += 4 * (layers[i].length + 1) + 4 + 8 * weights[i].length;
+        size += 4;
+        for (int i = 0; i < means.length; ++i)
+            size += 8 + 8 * (means[i] == null ? 0 : means[i].length + stddevs[i].length);
+
+        ByteBuffer bytes = ByteBuffer.allocate(size);
+        bytes.putInt(VERSION).putInt(history);
+        putArray(bytes, acc_offsets);
+        bytes.putInt(weights.length);
+        for (int i = 0; i < weights.length; ++i) {
+            bytes.putInt(layers[i].length);
+            for (int count : layers[i])
+                bytes.putInt(count);
+            putArray(bytes, weights[i]);
+        }
+        bytes.putInt(means.length);
+        for (int i = 0; i < means.length; ++i) {
+            putArray(bytes, means[i]);
+            putArray(bytes, stddevs[i]);
+        }
+
+        return bytes.array();
+    }
+
+    private void fromBytes(byte[] data) throws IOException {
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(data);
+            int version = bytes.getInt();
+            if (version != VERSION)
+                throw new InvalidObjectException("Unknown genome version " + version);
+
+            history = bytes.getInt();
+            acc_offsets = getArray(bytes);
+            // every network and model takes at least its two array lengths
+            int n_networks = bytes.getInt();
+            if (n_networks < 0 || n_networks > bytes.remaining() / 8)
+                throw new InvalidObjectException("The genome is cut off");
+            layers = new int[n_networks][];
+            weights = new double[n_networks][];
+            for (int i = 0; i < n_networks; ++i) {
+                int length = bytes.getInt();
+                if (length < 0 || length > bytes.remaining() / 4)
+                    throw new InvalidObjectException("The genome is cut off");
+                layers[i] = new int[length];
+                for (int j = 0; j < layers[i].length; ++j)
+                    layers[i][j] = bytes.getInt();
+                weights[i] = getArray(bytes);
+            }
+            int n_models = bytes.getInt();
+            if (n_models < 0 || n_models > bytes.remaining() / 8)
+                throw new InvalidObjectException("The genome is cut off");
+            means = new double[n_models][];
+            stddevs = new double[n_models][];
+            for (int i = 0; i < n_models; ++i) {
+                means[i] = getArray(bytes);
+                stddevs[i] = getArray(bytes);
+            }
+            if (bytes.hasRemaining())
+                throw new InvalidObjectException("The genome has " + bytes.remaining() + " bytes too many");
+        } catch (BufferUnderflowException e) {
+            throw new InvalidObjectException("The genome is cut off");
+        }
+    }
+
+    private static void putArray(ByteBuffer bytes, double[] array) {
+        bytes.putInt(array == null ? -1 : array.length);
+        if (array != null) {
+            for (double value : array)
+                bytes.putDouble(value);
+        }
+    }
+
+    private static double[] getArray(ByteBuffer bytes) throws InvalidObjectException {
+        int length = bytes.getInt();
+        if (length < 0)
+            return null;
+        if (length > bytes.remaining() / 8)
+            throw new InvalidObjectException("The genome is cut off");
+
+        double[] array = new double[length];
+        bytes.asDoubleBuffer().get(array);
+        bytes.position(bytes.position() + 8 * length);
+
+        return array;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(isEmpty() ? null : toBytes());
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        byte[] data = (byte[]) in.readObject();
+        if (data != null)
+            fromBytes(data);
+    }
+}
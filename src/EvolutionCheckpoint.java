@@ -0,0 +1,83 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * The state of an evolution after some generation: the evolution strategy (its mean, step size,
+ * covariance, evolution paths and generation), the time of the network it started from, and
+ * the best network found so far with its time, so the evolution can be continued where it was
+ * interrupted. Written the same way as a TrainingCheckpoint.
+ */
+public class EvolutionCheckpoint implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final Path PATH = Paths.get(TrainingCheckpoint.FOLDER, "evolution.checkpoint");
+
+    // what the fitness depends on besides the network, see EvolutionaryStuff
+    public final String evaluator_name;
+    public final String[] tracks;
+    public final int laps;
+    public final EvolutionStrategy strategy;
+    public final double base;
+    public final double[] best;
+    public final double best_time;
+
+    public EvolutionCheckpoint(String evaluator_name, String[] tracks, int laps, EvolutionStrategy strategy,
+                               double base, double[] best, double best_time) {
+        this.evaluator_name = evaluator_name;
+        this.tracks = tracks.clone();
+        this.laps = laps;
+        this.strategy = strategy;
+        this.base = base;
+        this.best = best.clone();
+        this.best_time = best_time;
+    }
+
+    public void save(Path path) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+             ObjectOutputStream out = new ObjectOutputStream(file)) {
+            out.writeObject(this);
+            out.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The checkpoint at path, or null if there is none (or it can't be read).
+     */
+    public static EvolutionCheckpoint load(Path path) {
+        if (!Files.isRegularFile(path))
+            return null;
+
+        try (InputStream file = Files.newInputStream(path);
+             ObjectInputStream in = new ObjectInputStream(file)) {
+            return (EvolutionCheckpoint) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            System.out.printf("Can't read checkpoint %s: %s\n", path, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Whether this checkpoint continues an evolution with the given settings.
+     */
+    public boolean matches(String evaluator_name, String[] tracks, int laps, int mode, int n, int lambda, int mu,
+                           long seed) {
+        return this.evaluator_name.equals(evaluator_name) && Arrays.equals(this.tracks, tracks) && this.laps == laps
+                && strategy.mode == mode && strategy.n == n && strategy.lambda == lambda && strategy.mu == mu
+                && strategy.seed == seed;
+    }
+}
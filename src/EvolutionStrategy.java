@@ -0,0 +1,527 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * An evolution strategy over a flat vector of weights, used through ask/tell: ask for a
+ * population of candidates, race them, and tell their fitness (lower is better) back.
+ *
+ * Two strategies are supported:
+ *
+ *   CMA: CMA-ES (Hansen's tutorial, with the default parameters). The covariance is a full
+ *   n x n matrix up to FULL_COVARIANCE_LIMIT weights; beyond that only its diagonal is kept
+ *   (sep-CMA-ES, Ros & Hansen), since the eigendecomposition of the full matrix takes O(n^3).
+ *
+ *   MU_LAMBDA: a self-adaptive (mu, lambda)-ES. Every parent carries its own step size, which
+ *   is mutated log-normally before the offspring are sampled; the best mu offspring replace
+ *   the parents, whatever the parents' fitness.
+ *
+ * Every candidate is sampled from its own SplittableRandom stream, split off the strategy's
+ * in a fixed order, so the population only depends on the seed. All state is kept in
+ * primitive arrays, the covariance row-major.
+ *
+ * A strategy is Serializable between generations (after a tell), so an evolution can be
+ * checkpointed and continued. The random stream isn't, it's split off the seed again up to
+ * where it was.
+ */
+public class EvolutionStrategy implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final int CMA = 0;
+    public static final int MU_LAMBDA = 1;
+
+    public static final int FULL_COVARIANCE_LIMIT = 500;
+
+    public final int mode;
+    public final int n;
+    public final int lambda;
+    public final int mu;
+    public final long seed;
+
+    private transient SplittableRandom random;
+    private transient double[][] population;
+    private int generation;
+
+    private double[] best;
+    private double best_fitness = Double.POSITIVE_INFINITY;
+
+    // CMA-ES
+    private double sigma;
+    private double[] mean;
+    private double[] weights;
+    private double mueff;
+    private double cc, cs, c1, cmu, damps, chi_n;
+    private double[] pc, ps;
+    private boolean diagonal;
+    // the covariance (n * n, or its diagonal), and C = B * diag(D^2) * B^T
+    private double[] c;
+    private double[] b;
+    private double[] d;
+    private int eigen_generation;
+    // the samples of the last population before scaling by sigma and adding the mean
+    private double[][] steps;
+
+    // (mu, lambda)-ES
+    private double[][] parents;
+    private double[] parent_sigmas;
+    private double[] offspring_sigmas;
+    private double tau;
+
+    public EvolutionStrategy(int mode, double[] start, double sigma, int lambda, int mu, long seed) {
+        if (mu < 1 || mu > lambda)
+            throw new IllegalArgumentException("Need 1 <= mu <= lambda, got mu " + mu + " and lambda " + lambda);
+
+        this.mode = mode;
+        this.n = start.length;
+        this.lambda = lambda;
+        this.mu = mu;
+        this.sigma = sigma;
+        this.seed = seed;
+        this.random = new SplittableRandom(seed);
+        best = start.clone();
+
+        if (mode == CMA) {
+            initCma(start);
+        } else if (mode == MU_LAMBDA) {
+            parents = new double[mu][];
+            parent_sigmas = new double[mu];
+            for (int i = 0; i < mu; ++i) {
+                parents[i] = start.clone();
+                parent_sigmas[i] = sigma;
+            }
+            offspring_sigmas = new double[lambda];
+            tau = 1 / Math.sqrt(2 * n);
+        } else {
+            throw new IllegalArgumentException("Unknown strategy " + mode);
+        }
+    }
+
+    private void initCma(double[] start) {
+        mean = start.clone();
+
+        // log-linear recombination weights for the best mu
+        weights = new double[mu];
+        double sum = 0;
+        for (int i = 0; i < mu; ++i) {
+            weights[i] = Math.log(mu + 0.5) - Math.log(i + 1);
+            sum += weights[i];
+        }
+        double squares = 0;
+        for (int i = 0; i < mu; ++i) {
+            weights[i] /= sum;
+            squares += weights[i] * weights[i];
+        }
+        mueff = 1 / squares;
+
+        cc = (4 + mueff / n) / (n + 4 + 2 * mueff / n);
+        cs = (mueff + 2) / (n + mueff + 5);
+        c1 = 2 / ((n + 1.3) * (n + 1.3) + mueff);
+        cmu = Math.min(1 - c1, 2 * (mueff - 2 + 1 / mueff) / ((n + 2) * (n + 2) + mueff));
+        damps = 1 + 2 * Math.max(0, Math.sqrt((mueff - 1) / (n + 1)) - 1) + cs;
+        chi_n = Math.sqrt(n) * (1 - 1.0 / (4 * n) + 1.0 / (21.0 * n * n));
+
+        pc = new double[n];
+        ps = new double[n];
+        diagonal = n > FULL_COVARIANCE_LIMIT;
+        if (diagonal) {
+            // sep-CMA-ES learns the n variances faster than a full matrix
+            c1 = Math.min(1, c1 * (n + 2) / 3);
+            cmu = Math.min(1 - c1, cmu * (n + 2) / 3);
+            c = new double[n];
+            Arrays.fill(c, 1);
+        } else {
+            c = new double[n * n];
+            b = new double[n * n];
+            for (int i = 0; i < n; ++i) {
+                c[i * n + i] = 1;
+                b[i * n + i] = 1;
+            }
+        }
+        d = new double[n];
+        Arrays.fill(d, 1);
+        steps = new double[lambda][n];
+    }
+
+    /**
+     * Sample the next population, lambda candidates of n weights.
+     */
+    public double[][] ask() {
+        population = new double[lambda][];
+        for (int k = 0; k < lambda; ++k)
+            population[k] = sample(k, random.split());
+
+        return population;
+    }
+
+    private double[] sample(int k, SplittableRandom stream) {
+        double[] x = new double[n];
+
+        if (mode == MU_LAMBDA) {
+            int parent = k % mu;
+            double s = parent_sigmas[parent] * Math.exp(tau * gaussian(stream));
+            offspring_sigmas[k] = s;
+            for (int i = 0; i < n; ++i)
+                x[i] = parents[parent][i] + s * gaussian(stream);
+            return x;
+        }
+
+        double[] z = new double[n];
+        for (int i = 0; i < n; ++i)
+            z[i] = d[i] * gaussian(stream);
+
+        // y = B * D * z
+        double[] y = steps[k];
+        if (diagonal) {
+            System.arraycopy(z, 0, y, 0, n);
+        } else {
+            for (int i = 0; i < n; ++i) {
+                double sum = 0;
+                for (int j = 0; j < n; ++j)
+                    sum += b[i * n + j] * z[j];
+                y[i] = sum;
+            }
+        }
+
+        for (int i = 0; i < n; ++i)
+            x[i] = mean[i] + sigma * y[i];
+        return x;
+    }
+
+    /**
+     * Update the strategy with the fitness of the population of the last ask, in the same
+     * order.
+     */
+    public void tell(double[] fitness) {
+        if (population == null || fitness.length != lambda)
+            throw new IllegalStateException("tell needs the fitness of the last population of " + lambda);
+
+        int[] order = new int[lambda];
+        for (int k = 0; k < lambda; ++k)
+            order[k] = k;
+        order = Arrays.stream(order).boxed()
+                .sorted((x, y) -> Double.compare(fitness[x], fitness[y]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        if (fitness[order[0]] < best_fitness) {
+            best_fitness = fitness[order[0]];
+            best = population[order[0]].clone();
+        }
+
+        if (mode == MU_LAMBDA) {
+            for (int i = 0; i < mu; ++i) {
+                parents[i] = population[order[i]];
+                parent_sigmas[i] = offspring_sigmas[order[i]];
+            }
+        } else {
+            updateCma(order);
+        }
+
+        generation++;
+        population = null;
+    }
+
+    private void updateCma(int[] order) {
+        // the weighted mean of the best steps, y_w = (m_new - m_old) / sigma
+        double[] y_w = new double[n];
+        for (int i = 0; i < mu; ++i) {
+            double[] y = steps[order[i]];
+            for (int j = 0; j < n; ++j)
+                y_w[j] += weights[i] * y[j];
+        }
+        for (int j = 0; j < n; ++j)
+            mean[j] += sigma * y_w[j];
+
+        // ps follows C^-1/2 * y_w = B * D^-1 * B^T * y_w
+        double[] whitened = new double[n];
+        if (diagonal) {
+            for (int j = 0; j < n; ++j)
+                whitened[j] = y_w[j] / d[j];
+        } else {
+            double[] t = new double[n];
+            for (int i = 0; i < n; ++i) {
+                double sum = 0;
+                for (int j = 0; j < n; ++j)
+                    sum += b[j * n + i] * y_w[j];
+                t[i] = sum / d[i];
+            }
+            for (int i = 0; i < n; ++i) {
+                double sum = 0;
+                for (int j = 0; j < n; ++j)
+                    sum += b[i * n + j] * t[j];
+                whitened[i] = sum;
+            }
+        }
+
+        double ps_scale = Math.sqrt(cs * (2 - cs) * mueff);
+        double ps_norm = 0;
+        for (int j = 0; j < n; ++j) {
+            ps[j] = (1 - cs) * ps[j] + ps_scale * whitened[j];
+            ps_norm += ps[j] * ps[j];
+        }
+        ps_norm = Math.sqrt(ps_norm);
+
+        // stall the update of pc when the step size is growing fast
+        boolean hsig = ps_norm / Math.sqrt(1 - Math.pow(1 - cs, 2.0 * (generation + 1))) / chi_n
+                < 1.4 + 2.0 / (n + 1);
+        double pc_scale = hsig ? Math.sqrt(cc * (2 - cc) * mueff) : 0;
+        for (int j = 0; j < n; ++j)
+            pc[j] = (1 - cc) * pc[j] + pc_scale * y_w[j];
+
+        double keep = 1 - c1 - cmu + (hsig ? 0 : c1 * cc * (2 - cc));
+        if (diagonal) {
+            for (int j = 0; j < n; ++j) {
+                double rank_mu = 0;
+                for (int i = 0; i < mu; ++i) {
+                    double y = steps[order[i]][j];
+                    rank_mu += weights[i] * y * y;
+                }
+                c[j] = keep * c[j] + c1 * pc[j] * pc[j] + cmu * rank_mu;
+                d[j] = Math.sqrt(c[j]);
+            }
+        } else {
+            for (int i = 0; i < n; ++i) {
+                for (int j = 0; j <= i; ++j) {
+                    double rank_mu = 0;
+                    for (int k = 0; k < mu; ++k)
+                        rank_mu += weights[k] * steps[order[k]][i] * steps[order[k]][j];
+                    double value = keep * c[i * n + j] + c1 * pc[i] * pc[j] + cmu * rank_mu;
+                    c[i * n + j] = value;
+                    c[j * n + i] = value;
+                }
+            }
+        }
+
+        sigma *= Math.exp((cs / damps) * (ps_norm / chi_n - 1));
+
+        // decompose C again only every few generations, the O(n^3) would dominate otherwise
+        if (!diagonal && generation - eigen_generation > lambda / (c1 + cmu) / n / 10) {
+            eigen_generation = generation;
+            decompose();
+        }
+    }
+
+    /**
+     * B and D from the covariance, through Householder tridiagonalization and the QL algorithm
+     * (tred2 and tql2 from JAMA).
+     */
+    private void decompose() {
+        System.arraycopy(c, 0, b, 0, n * n);
+        double[] e = new double[n];
+        tred2(n, b, d, e);
+        tql2(n, b, d, e);
+
+        for (int i = 0; i < n; ++i)
+            d[i] = Math.sqrt(Math.max(d[i], 1e-20));
+    }
+
+    private static void tred2(int n, double[] v, double[] d, double[] e) {
+        for (int j = 0; j < n; ++j)
+            d[j] = v[(n - 1) * n + j];
+
+        for (int i = n - 1; i > 0; --i) {
+            double scale = 0;
+            double h = 0;
+            for (int k = 0; k < i; ++k)
+                scale += Math.abs(d[k]);
+
+            if (scale == 0) {
+                e[i] = d[i - 1];
+                for (int j = 0; j < i; ++j) {
+                    d[j] = v[(i - 1) * n + j];
+                    v[i * n + j] = 0;
+                    v[j * n + i] = 0;
+                }
+            } else {
+                for (int k = 0; k < i; ++k) {
+                    d[k] /= scale;
+                    h += d[k] * d[k];
+                }
+                double f = d[i - 1];
+                double g = Math.sqrt(h);
+                if (f > 0)
+                    g = -g;
+                e[i] = scale * g;
+                h -= f * g;
+                d[i - 1] = f - g;
+                for (int j = 0; j < i; ++j)
+                    e[j] = 0;
+
+                for (int j = 0; j < i; ++j) {
+                    f = d[j];
+                    v[j * n + i] = f;
+                    g = e[j] + v[j * n + j] * f;
+                    for (int k = j + 1; k <= i - 1; ++k) {
+                        g += v[k * n + j] * d[k];
+                        e[k] += v[k * n + j] * f;
+                    }
+                    e[j] = g;
+                }
+                f = 0;
+                for (int j = 0; j < i; ++j) {
+                    e[j] /= h;
+                    f += e[j] * d[j];
+                }
+                double hh = f / (h + h);
+                for (int j = 0; j < i; ++j)
+                    e[j] -= hh * d[j];
+                for (int j = 0; j < i; ++j) {
+                    f = d[j];
+                    g = e[j];
+                    for (int k = j; k <= i - 1; ++k)
+                        v[k * n + j] -= (f * e[k] + g * d[k]);
+                    d[j] = v[(i - 1) * n + j];
+                    v[i * n + j] = 0;
+                }
+            }
+            d[i] = h;
+        }
+
+        // accumulate the transformations
+        for (int i = 0; i < n - 1; ++i) {
+            v[(n - 1) * n + i] = v[i * n + i];
+            v[i * n + i] = 1;
+            double h = d[i + 1];
+            if (h != 0) {
+                for (int k = 0; k <= i; ++k)
+                    d[k] = v[k * n + i + 1] / h;
+                for (int j = 0; j <= i; ++j) {
+                    double g = 0;
+                    for (int k = 0; k <= i; ++k)
+                        g += v[k * n + i + 1] * v[k * n + j];
+                    for (int k = 0; k <= i; ++k)
+                        v[k * n + j] -= g * d[k];
+                }
+            }
+            for (int k = 0; k <= i; ++k)
+                v[k * n + i + 1] = 0;
+        }
+        for (int j = 0; j < n; ++j) {
+            d[j] = v[(n - 1) * n + j];
+            v[(n - 1) * n + j] = 0;
+        }
+        v[(n - 1) * n + n - 1] = 1;
+        e[0] = 0;
+    }
+
+    private static void tql2(int n, double[] v, double[] d, double[] e) {
+        for (int i = 1; i < n; ++i)
+            e[i - 1] = e[i];
+        e[n - 1] = 0;
+
+        double f = 0;
+        double tst1 = 0;
+        double eps = Math.ulp(1.0);
+        for (int l = 0; l < n; ++l) {
+            // find a small subdiagonal element
+            tst1 = Math.max(tst1, Math.abs(d[l]) + Math.abs(e[l]));
+            int m = l;
+            while (m < n) {
+                if (Math.abs(e[m]) <= eps * tst1)
+                    break;
+                m++;
+            }
+
+            // if m == l, d[l] is already an eigenvalue, otherwise iterate
+            if (m > l) {
+                do {
+                    double g = d[l];
+                    double p = (d[l + 1] - g) / (2 * e[l]);
+                    double r = Math.hypot(p, 1);
+                    if (p < 0)
+                        r = -r;
+                    d[l] = e[l] / (p + r);
+                    d[l + 1] = e[l] * (p + r);
+                    double dl1 = d[l + 1];
+                    double h = g - d[l];
+                    for (int i = l + 2; i < n; ++i)
+                        d[i] -= h;
+                    f += h;
+
+                    // implicit QL transformation
+                    p = d[m];
+                    double c = 1, c2 = 1, c3 = 1;
+                    double el1 = e[l + 1];
+                    double s = 0, s2 = 0;
+                    for (int i = m - 1; i >= l; --i) {
+                        c3 = c2;
+                        c2 = c;
+                        s2 = s;
+                        g = c * e[i];
+                        h = c * p;
+                        r = Math.hypot(p, e[i]);
+                        e[i + 1] = s * r;
+                        s = e[i] / r;
+                        c = p / r;
+                        p = c * d[i] - s * g;
+                        d[i + 1] = h + s * (c * g + s * d[i]);
+
+                        for (int k = 0; k < n; ++k) {
+                            h = v[k * n + i + 1];
+                            v[k * n + i + 1] = s * v[k * n + i] + c * h;
+                            v[k * n + i] = c * v[k * n + i] - s * h;
+                        }
+                    }
+                    p = -s * s2 * c3 * el1 * e[l] / dl1;
+                    e[l] = s * p;
+                    d[l] = c * p;
+                } while (Math.abs(e[l]) > eps * tst1);
+            }
+            d[l] += f;
+            e[l] = 0;
+        }
+    }
+
+    /**
+     * A standard normal sample (Marsaglia's polar method), SplittableRandom has none of its own.
+     */
+    static double gaussian(SplittableRandom random) {
+        double u, v, s;
+        do {
+            u = 2 * random.nextDouble() - 1;
+            v = 2 * random.nextDouble() - 1;
+            s = u * u + v * v;
+        } while (s >= 1 || s == 0);
+
+        return u * Math.sqrt(-2 * Math.log(s) / s);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        // every generation split off one stream per candidate
+        random = new SplittableRandom(seed);
+        for (long k = 0; k < (long) generation * lambda; ++k)
+            random.split();
+    }
+
+    /**
+     * The best candidate told so far (the start if none was better than infinity).
+     */
+    public double[] getBest() {
+        return best.clone();
+    }
+
+    public double getBestFitness() {
+        return best_fitness;
+    }
+
+    /**
+     * The current step size, for (mu, lambda) the mean of the parents'.
+     */
+    public double getSigma() {
+        if (mode == CMA)
+            return sigma;
+
+        double sum = 0;
+        for (double s : parent_sigmas)
+            sum += s;
+        return sum / mu;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+}
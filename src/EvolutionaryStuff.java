@@ -2,48 +2,277 @@ import org.encog.neural.networks.BasicNetwork;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 public class EvolutionaryStuff {
     private double previous_best;
 
+    /**
+     * Races a network and returns its fitness, a lap time (lower is better). An evaluator is
+     * only ever used by one thread at a time.
+     */
+    public interface Evaluator {
+        double evaluate(BasicNetwork network);
+
+        /**
+         * Whether the last evaluate gave up on the race early; its fitness is then only an
+         * estimate that depends on what was raced before, so it isn't cached.
+         */
+        default boolean stopped() {
+            return false;
+        }
+    }
+
+    public interface EvaluatorFactory {
+        Evaluator create(String[] tracks) throws IOException;
+    }
+
+    // the number of networks raced at the same time, each worker gets its own evaluator
+    public int workers = 1;
+    // makes an evaluator for the given tracks, by default a TORCS race on each of them and the
+    // sum of the lap times; every TORCS race rewrites the installation's one
+    // config/raceman/quickrace.xml, its client always connects on port 3001 plus the driver's
+    // number, and runRace redirects System.out, so those races have to stay one at a time
+    public EvaluatorFactory evaluators = tracks -> network -> {
+        double time = 0;
+        for (String track : tracks)
+            time += runRace(track, network);
+        return time;
+    };
+    // what a race's outcome depends on besides the network, part of the fitness cache's key
+    public String evaluator_name = "torcs";
+    public int laps = 1;
+    // look up networks that were raced before (in this or an earlier run) instead of racing them
+    public boolean use_cache = true;
+    // scores every candidate cheaply first (a short simulated run, or imitationEvaluator), so
+    // only the screened best of them are raced; null races them all
+    public EvaluatorFactory surrogates = null;
+    public int screened = 3;
+    // the splits the evaluators give up races against (see TrackSetEvaluator), null if they
+    // race every network to the end
+    public TrackSetEvaluator.Incumbent incumbent = null;
+
+    // the original scheme: average the mutants that beat the parent into the next parent
+    public static final int IMPROVERS = -1;
+    // EvolutionStrategy.CMA, EvolutionStrategy.MU_LAMBDA or IMPROVERS
+    public int strategy = EvolutionStrategy.CMA;
+    public int generations = 10;
+    public int population = 10;
+    public int parents = 5;
+    // the initial standard deviation of the changes to the weights
+    public double sigma = 0.02;
+    public long seed = 42;
+    // continue the evolution from its checkpoint (see EvolutionCheckpoint) if there is one for
+    // the same settings, only for the evolution strategies
+    public boolean resume = false;
+
+    // the state of the current evolve call
+    private String[] tracks;
+    private ExecutorService pool;
+    private ThreadLocal<Evaluator> evaluator;
+    private ThreadLocal<Evaluator> surrogate;
+    private FitnessCache cache;
+    // the hash of the rest of the driver the road networks are raced in, see FitnessCache.driver
+    private String driver;
+
     public EvolutionaryStuff() {
     }
 
-    public void evolve(String track) {
-        DefaultDriverAlgorithm algorithm;
-        BasicNetwork network = new DefaultDriver().neuralNetwork.road_network;
+    /**
+     * Evolve in the replay simulator instead of TORCS, which runs in-process, so the candidates
+     * can be raced on all cores at once. A candidate's race is given up as soon as it falls
+     * behind the splits of the fastest network so far.
+     */
+    public static EvolutionaryStuff simulated(int laps) {
+        EvolutionaryStuff evolution = new EvolutionaryStuff();
+        TrackSetEvaluator.Incumbent incumbent = new TrackSetEvaluator.Incumbent();
+        evolution.workers = Runtime.getRuntime().availableProcessors();
+        evolution.incumbent = incumbent;
+        evolution.evaluators = tracks -> new TrackSetEvaluator(tracks, laps, 20000 * laps, incumbent);
+        evolution.evaluator_name = "simulated-" + ReplaySimulator.VERSION;
+        evolution.laps = laps;
+        return evolution;
+    }
+
+    /**
+     * Evolve the road network on the given tracks, the fitness is the sum of the lap times.
+     */
+    public void evolve(String... tracks) {
+        NeuralNetwork genome = new DefaultDriver().neuralNetwork;
+
+        this.tracks = tracks;
+        if (incumbent != null)
+            incumbent.reset();
+        evaluator = perThread(evaluators, tracks);
+        surrogate = surrogates == null ? null : perThread(surrogates, tracks);
+        cache = use_cache ? FitnessCache.load(Paths.get(FitnessCache.PATH)) : null;
+        driver = FitnessCache.driver(genome);
+        pool = Executors.newFixedThreadPool(Math.max(1, workers));
+        try {
+            evolve(genome);
+        } finally {
+            pool.shutdown();
+            pool = null;
+        }
+
+        if (cache != null)
+            System.out.printf("Fitness cache: %d hits, %d races\n", cache.hits, cache.misses);
+        if (incumbent != null)
+            System.out.printf("Stopped %d of %d races early\n", incumbent.stopped.get(), incumbent.races.get());
+    }
+
+    /**
+     * Every worker thread creates its own evaluator the first time it needs one.
+     */
+    private static ThreadLocal<Evaluator> perThread(EvaluatorFactory factory, String[] tracks) {
+        return ThreadLocal.withInitial(() -> {
+            try {
+                return factory.create(tracks);
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        });
+    }
+
+    private void evolve(NeuralNetwork genome) {
+        if (strategy == IMPROVERS)
+            evolveImprovers(genome);
+        else
+            evolveStrategy(genome);
+    }
+
+    /**
+     * Evolve the full weight vector of the road network with an EvolutionStrategy, and store
+     * the best network found if it beat the one we started with.
+     *
+     * The strategy only uses the order of the candidates, so with surrogates the raced ones are
+     * ranked by their times and the others after them by their surrogate scores.
+     */
+    private void evolveStrategy(NeuralNetwork genome) {
+        BasicNetwork network = genome.road_network;
+        double base = evaluateBase(network);
+        System.out.printf("Base time: %f\n", base);
+
+        EvolutionStrategy es = new EvolutionStrategy(strategy, network.getFlat().getWeights(), sigma, population,
+                parents, seed);
+        BasicNetwork best = network;
+        double best_time = base;
+
+        EvolutionCheckpoint saved = resume ? EvolutionCheckpoint.load(EvolutionCheckpoint.PATH) : null;
+        if (saved != null && saved.matches(evaluator_name, tracks, laps, strategy, es.n, population, parents, seed)) {
+            System.out.printf("Continuing from generation %d\n", saved.strategy.getGeneration() + 1);
+            es = saved.strategy;
+            base = saved.base;
+            best_time = saved.best_time;
+            if (best_time < base)
+                best = withWeights(network, saved.best);
+        }
+
+        for (int generation = es.getGeneration(); generation < generations; ++generation) {
+            System.out.printf("-- Generation %d --\n", generation + 1);
+
+            List<BasicNetwork> networks = new ArrayList<>();
+            for (double[] weights : es.ask())
+                networks.add(withWeights(network, weights));
+
+            List<Integer> order = screen(networks);
+            int raced = raced(networks.size());
+            List<Double> times = evaluate(order.subList(0, raced).stream()
+                    .map(networks::get)
+                    .collect(Collectors.toList()));
+            printTimes(times, networks.size());
+
+            List<Integer> by_time = IntStream.range(0, raced)
+                    .boxed()
+                    .sorted((x, y) -> times.get(x).compareTo(times.get(y)))
+                    .collect(Collectors.toList());
+            double[] ranks = new double[networks.size()];
+            for (int k = 0; k < networks.size(); ++k)
+                ranks[order.get(k < raced ? by_time.get(k) : k)] = k;
+            es.tell(ranks);
+
+            if (times.get(by_time.get(0)) < best_time) {
+                best_time = times.get(by_time.get(0));
+                best = networks.get(order.get(by_time.get(0)));
+            }
+            System.out.printf("Best time so far: %f, sigma %g\n\n", best_time, es.getSigma());
+
+            try {
+                new EvolutionCheckpoint(evaluator_name, tracks, laps, es, base, best.getFlat().getWeights(),
+                        best_time).save(EvolutionCheckpoint.PATH);
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+
+        // keep the rest of the genome, so the models and the other networks still match
+        if (best_time < base) {
+            genome.road_network = best;
+            genome.storeGenome();
+        }
+
+        // the evolution is complete, there's nothing left to resume
+        try {
+            Files.deleteIfExists(EvolutionCheckpoint.PATH);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * A copy of network with the given flat weights.
+     */
+    public static BasicNetwork withWeights(BasicNetwork network, double[] weights) {
+        BasicNetwork copy = (BasicNetwork) network.clone();
+        System.arraycopy(weights, 0, copy.getFlat().getWeights(), 0, weights.length);
+        return copy;
+    }
+
+    private void evolveImprovers(NeuralNetwork genome) {
+        BasicNetwork network = genome.road_network;
+        SplittableRandom random = new SplittableRandom(seed);
 
         // get the base time
-        previous_best = runRace(track, network);
+        previous_best = evaluateBase(network);
         System.out.printf("Base time: %f\n", previous_best);
 
         // repeat the entire thing a few times
-        for (int i = 0; i < 10; ++i) {
+        for (int i = 0; i < generations; ++i) {
             System.out.printf("-- Generation %d --\n", i + 1);
 
-            // create 10 randomly mutated networks
+            // create randomly mutated networks
             ArrayList<BasicNetwork> networks = new ArrayList<>();
-            for (int j = 0; j < 10; ++j) {
+            for (int j = 0; j < population; ++j) {
                 BasicNetwork new_network = (BasicNetwork) network.clone();
-                EvolutionaryStuff.mutate(new_network);
+                EvolutionaryStuff.mutate(new_network, random.split(), sigma);
                 networks.add(new_network);
             }
 
-            // record the racetime for each algorithm
-            ArrayList<Double> times = new ArrayList<>();
+            // record the racetime for each algorithm, the ones that weren't raced never beat the parent
+            List<Integer> order = screen(networks);
+            int raced = raced(networks.size());
+            List<Double> raced_times = evaluate(order.subList(0, raced).stream()
+                    .map(networks::get)
+                    .collect(Collectors.toList()));
+            printTimes(raced_times, networks.size());
 
-            for (BasicNetwork n : networks) {
-                double time = runRace(track, n);
-                times.add(time);
-                System.out.printf("%.2f ", time);
-            }
-            System.out.printf("\n");
+            List<Double> times = new ArrayList<>(Collections.nCopies(networks.size(), Double.POSITIVE_INFINITY));
+            for (int k = 0; k < raced; ++k)
+                times.set(order.get(k), raced_times.get(k));
 
 
             List<Integer> sorted = IntStream.range(0, networks.size())
@@ -59,17 +288,178 @@ public class EvolutionaryStuff {
 
             System.out.printf("Best time this generation: %f\n", times.get(sorted.get(0)));
             network = merged;
-            previous_best = runRace(track, network);
+            previous_best = evaluate(List.of(network)).get(0);
             System.out.printf("Merged time: %f\n\n", previous_best);
 
-            if (i == 9) {
-                NeuralNetwork n = new NeuralNetwork(34, 3);
-                n.road_network = network;
-                n.storeGenome();
+            // keep the rest of the genome, so the models and the other networks still match
+            if (i == generations - 1) {
+                genome.road_network = network;
+                genome.storeGenome();
+            }
+        }
+    }
+
+    /**
+     * The number of a generation's candidates that get raced.
+     */
+    private int raced(int candidates) {
+        return surrogate == null ? candidates : Math.min(Math.max(1, screened), candidates);
+    }
+
+    /**
+     * The indices of networks from the best surrogate score to the worst, or just in order
+     * without surrogates. The scores are computed on the pool like the races.
+     */
+    private List<Integer> screen(List<BasicNetwork> networks) {
+        if (surrogate == null || raced(networks.size()) == networks.size())
+            return IntStream.range(0, networks.size()).boxed().collect(Collectors.toList());
+
+        List<Future<Double>> futures = new ArrayList<>();
+        for (BasicNetwork network : networks)
+            futures.add(pool.submit(() -> surrogate.get().evaluate(network)));
+        List<Double> scores = results(futures);
+
+        return IntStream.range(0, networks.size())
+                .boxed()
+                .sorted((x, y) -> scores.get(x).compareTo(scores.get(y)))
+                .collect(Collectors.toList());
+    }
+
+    private static void printTimes(List<Double> times, int candidates) {
+        for (double time : times)
+            System.out.printf("%.2f ", time);
+        if (times.size() < candidates)
+            System.out.printf("(%d screened out)", candidates - times.size());
+        System.out.printf("\n");
+    }
+
+    /**
+     * The time of the network we start from. When races are given up early it's always raced,
+     * even if it's in the cache, because its splits are what the first candidates race against.
+     */
+    private double evaluateBase(BasicNetwork network) {
+        return evaluate(List.of(network), incumbent == null).get(0);
+    }
+
+    private List<Double> evaluate(List<BasicNetwork> networks) {
+        return evaluate(networks, true);
+    }
+
+    /**
+     * Race all networks on the pool and return their times in the same order. Every network is
+     * a separate task, so a worker starts on the next one as soon as it's done with its last.
+     * Networks that are in the fitness cache aren't raced again, unless lookup is false. Only
+     * races that were driven to the end are added to the cache.
+     */
+    private List<Double> evaluate(List<BasicNetwork> networks, boolean lookup) {
+        List<Future<Double>> futures = new ArrayList<>();
+        for (BasicNetwork network : networks) {
+            String key = cache == null ? null : FitnessCache.key(evaluator_name, String.join(",", tracks), laps,
+                    driver, network);
+            Double cached = cache == null || !lookup ? null : cache.get(key);
+            futures.add(cached != null ? CompletableFuture.completedFuture(cached) : pool.submit(() -> {
+                Evaluator race = evaluator.get();
+                double time = race.evaluate(network);
+                if (cache != null && !race.stopped())
+                    cache.put(key, time);
+                return time;
+            }));
+        }
+
+        List<Double> times = results(futures);
+        if (cache != null) {
+            try {
+                cache.save();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
             }
         }
+
+        return times;
     }
 
+    private static List<Double> results(List<Future<Double>> futures) {
+        List<Double> results = new ArrayList<>();
+        for (Future<Double> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while racing", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * An evaluator that races networks in the replay simulators of tracks, see
+     * TrackSetEvaluator. Its driver and network are loaded once and only get the road network
+     * swapped per race.
+     */
+    public static Evaluator simulatedEvaluator(String[] tracks, int laps) throws IOException {
+        return simulatedEvaluator(tracks, laps, 20000 * laps);
+    }
+
+    /**
+     * Same as above, but stops the race on every track after ticks. With a fraction of a lap's
+     * ticks this is a cheap surrogate: the lap times extrapolated from the first part of the
+     * tracks.
+     */
+    public static Evaluator simulatedEvaluator(String[] tracks, int laps, int ticks) throws IOException {
+        return new TrackSetEvaluator(tracks, laps, ticks, null);
+    }
+
+    /**
+     * A surrogate that doesn't race at all: the mean squared error of a road network's actions
+     * on the logged frames of the csv files in folder, with the history and normalization of
+     * the stored genome. At most samples frames are used, spread evenly over the logs. Logs
+     * the network wasn't trained on (human_data) tell more about how it generalizes.
+     */
+    public static Evaluator imitationEvaluator(String folder, int samples) throws IOException {
+        NeuralNetwork genome = NeuralNetwork.loadGenome();
+        int history = genome.history;
+        Data data = new DataModel().load_raw_data(NeuralNetwork.list_csv(folder));
+        NeuralNetwork.clamp_actions(data);
+        for (int row = 0; row < data.rows; ++row)
+            genome.road_model.normalize(data.X, row * data.x_columns);
+
+        // the windows that don't cross the start of a log
+        List<Integer> frames = new ArrayList<>();
+        for (int file = 0; file < data.file_starts.length; ++file) {
+            int end = file + 1 < data.file_starts.length ? data.file_starts[file + 1] : data.rows;
+            for (int frame = data.file_starts[file] + history; frame < end; ++frame)
+                frames.add(frame);
+        }
+        if (frames.isEmpty())
+            throw new IOException("No logged frames in " + folder);
+
+        int rows = Math.min(samples, frames.size());
+        int n_input = (history + 1) * data.x_columns;
+        double[] inputs = new double[rows * n_input];
+        double[] ideal = new double[rows * data.y_columns];
+        for (int i = 0; i < rows; ++i) {
+            int frame = frames.get((int) ((long) i * frames.size() / rows));
+            System.arraycopy(data.X, (frame - history) * data.x_columns, inputs, i * n_input, n_input);
+            System.arraycopy(data.Y, frame * data.y_columns, ideal, i * data.y_columns, data.y_columns);
+        }
+        double[] outputs = new double[ideal.length];
+
+        return network -> {
+            FrozenNetwork.compile(network).computeBatch(inputs, rows, outputs);
+            double error = 0;
+            for (int i = 0; i < outputs.length; ++i)
+                error += (outputs[i] - ideal[i]) * (outputs[i] - ideal[i]);
+
+            return error / outputs.length;
+        };
+    }
+
+    /**
+     * Race n for a lap on track in TORCS and return its lap time, infinity if it didn't finish.
+     */
     public static double runRace(String track, BasicNetwork n) {
         // backup stdout
         PrintStream stdout = System.out;
@@ -85,42 +475,28 @@ public class EvolutionaryStuff {
         double time = algorithm.run_with_results(n);
         System.setOut(stdout);
 
-        return time;
+        // the best lap time is 0 if not a single lap was completed
+        return time > 0 ? time : Double.POSITIVE_INFINITY;
     }
 
-    public static void mutate(BasicNetwork network) {
-        Random rng = new Random();
-
-        // mutate the hidden-to-output weights
-        for (int from = 0; from < 12; ++from) {
-            for (int to = 0; to < 3; ++to) {
-                double old_value = network.getWeight(1, from, to);
-                network.setWeight(1, from, to, old_value + (0.005 * rng.nextGaussian()));
-            }
-        }
-
-        // mutate the input-to-hidden weights
-        /*
-        for (int from = 0; from < 22; ++from) {
-            for (int to = 0; to < 12; ++to) {
-                if (rng.nextDouble() < 0.10) {
-                    double old_value = road_network.getWeight(0, from, to);
-                    road_network.setWeight(1, from, to, old_value + (0.0001 * rng.nextGaussian()));
-                }
-            }
-        }
-        */
+    /**
+     * Add normally distributed noise with the given standard deviation to all weights.
+     */
+    public static void mutate(BasicNetwork network, SplittableRandom random, double sigma) {
+        double[] weights = network.getFlat().getWeights();
+        for (int i = 0; i < weights.length; ++i)
+            weights[i] += sigma * EvolutionStrategy.gaussian(random);
     }
 
+    /**
+     * The network with the average of the weights of a and b.
+     */
     public static BasicNetwork combine(BasicNetwork a, BasicNetwork b) {
-        BasicNetwork out = (BasicNetwork)a.clone();
-        for (int from = 0; from < 12; ++from) {
-            for (int to = 0; to < 3; ++to) {
-                double a_value = a.getWeight(1, from, to);
-                double b_value = b.getWeight(1, from, to);
-                out.setWeight(1, from, to, (a_value + b_value) / 2);
-            }
-        }
+        BasicNetwork out = (BasicNetwork) a.clone();
+        double[] weights = out.getFlat().getWeights();
+        double[] b_weights = b.getFlat().getWeights();
+        for (int i = 0; i < weights.length; ++i)
+            weights[i] = (weights[i] + b_weights[i]) / 2;
 
         return out;
     }
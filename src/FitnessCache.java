@@ -0,0 +1,171 @@
+import org.encog.neural.networks.BasicNetwork;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The fitness of every network that has been raced, so a network is never raced twice with
+ * the same settings. The key is a SHA-256 hash of the network's layer sizes and flat weights
+ * together with the evaluator, track and number of laps, and a hash of the rest of the driver
+ * the network was raced in (see driver), so retraining anything but the road network makes
+ * the old times miss instead of being served as current.
+ *
+ * The cache is kept on disk between runs; like TrainingCheckpoint it's written to a temporary
+ * file that is then renamed over the old one.
+ */
+public class FitnessCache {
+    public static final String PATH = "memory/fitness.cache";
+
+    private final Path path;
+    private final ConcurrentHashMap<String, Double> fitness = new ConcurrentHashMap<>();
+    public int hits;
+    public int misses;
+
+    private FitnessCache(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * The cache stored at path, or an empty one if there is none (or it can't be read).
+     */
+    @SuppressWarnings("unchecked")
+    public static FitnessCache load(Path path) {
+        FitnessCache cache = new FitnessCache(path);
+        if (!Files.isRegularFile(path))
+            return cache;
+
+        try (InputStream file = Files.newInputStream(path);
+             ObjectInputStream in = new ObjectInputStream(file)) {
+            cache.fitness.putAll((HashMap<String, Double>) in.readObject());
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            System.out.printf("Can't read fitness cache %s: %s\n", path, e.getMessage());
+        }
+
+        return cache;
+    }
+
+    /**
+     * The key of network raced in the driver hashed by driver(...).
+     */
+    public static String key(String evaluator, String track, int laps, String driver, BasicNetwork network) {
+        ByteBuffer bytes = ByteBuffer.allocate(size(network));
+        put(bytes, network);
+
+        return evaluator + '/' + track + '/' + laps + '/' + driver + '/' + hex(bytes.array());
+    }
+
+    /**
+     * A hash of everything besides the road network that a race depends on: the history, the
+     * acceleration offsets, the normalization of both data models (folded into the input layer
+     * of the compiled networks) and the dirt and Q networks.
+     */
+    public static String driver(NeuralNetwork network) {
+        DataModel[] models = {network.road_model, network.dirt_model};
+        BasicNetwork[] networks = {network.dirt_network, network.q_network, network.dirt_q};
+
+        int size = 8 + 8 * network.acc_offsets.length;
+        for (DataModel model : models)
+            size += 8 + 16 * (model.getMeans() == null ? 0 : model.getMeans().length);
+        for (BasicNetwork other : networks)
+            size += size(other);
+
+        ByteBuffer bytes = ByteBuffer.allocate(size);
+        bytes.putInt(network.history);
+        bytes.putInt(network.acc_offsets.length);
+        for (double offset : network.acc_offsets)
+            bytes.putDouble(offset);
+        for (DataModel model : models) {
+            double[] means = model.getMeans();
+            double[] stddevs = model.getStddevs();
+            bytes.putInt(means == null ? -1 : means.length);
+            bytes.putInt(stddevs == null ? -1 : stddevs.length);
+            if (means == null)
+                continue;
+            for (double mean : means)
+                bytes.putDouble(mean);
+            for (double stddev : stddevs)
+                bytes.putDouble(stddev);
+        }
+        for (BasicNetwork other : networks)
+            put(bytes, other);
+
+        return hex(bytes.array());
+    }
+
+    private static int size(BasicNetwork network) {
+        return 4 * (network.getFlat().getLayerCounts().length + 1) + 8 * network.getFlat().getWeights().length;
+    }
+
+    private static void put(ByteBuffer bytes, BasicNetwork network) {
+        int[] layers = network.getFlat().getLayerCounts();
+        bytes.putInt(layers.length);
+        for (int layer : layers)
+            bytes.putInt(layer);
+        for (double weight : network.getFlat().getWeights())
+            bytes.putDouble(weight);
+    }
+
+    /**
+     * The SHA-256 hash of bytes in hex.
+     */
+    private static String hex(byte[] bytes) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest(bytes))
+            hex.append(String.format("%02x", b));
+
+        return hex.toString();
+    }
+
+    /**
+     * The fitness stored for key, or null if it hasn't been raced yet.
+     */
+    public Double get(String key) {
+        Double value = fitness.get(key);
+        if (value == null)
+            misses++;
+        else
+            hits++;
+
+        return value;
+    }
+
+    public void put(String key, double value) {
+        fitness.put(key, value);
+    }
+
+    public int size() {
+        return fitness.size();
+    }
+
+    public void save() throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+             ObjectOutputStream out = new ObjectOutputStream(file)) {
+            out.writeObject(new HashMap<>(fitness));
+            out.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,239 @@
+import org.encog.engine.network.activation.ActivationFunction;
+import org.encog.engine.network.activation.ActivationLinear;
+import org.encog.engine.network.activation.ActivationTANH;
+import org.encog.neural.networks.BasicNetwork;
+
+/**
+ * A trained BasicNetwork compiled into plain arrays for driving.
+ *
+ * The weights of each layer are stored row-major (one row of inputs per output neuron) with the
+ * bias kept separately, and the layers are evaluated by hand instead of through Encog's flat
+ * network. If a DataModel is given its mean/stddev normalization is folded into the first layer,
+ * so compute() takes the raw sensor features.
+ *
+ * The weights only change when refresh() copies them from the retrained BasicNetwork again, which
+ * reuses the arrays, so a network that's updated every step isn't recompiled every step.
+ * The scratch buffers are per instance, so one instance should only be used by one thread;
+ * threads sharing a network that isn't refreshed anymore each pass their own scratch() to
+ * compute instead.
+ */
+public class FrozenNetwork {
+    public final BasicNetwork source;
+    private final DataModel model;
+
+    private final int[] sizes;
+    private final double[][] weights;
+    private final double[][] biases;
+    private final boolean[] tanh;
+    private final double[][] activations;
+    // the same for computeBatch, grown to the largest batch seen
+    private final double[][] batch_activations;
+
+    private FrozenNetwork(BasicNetwork source, DataModel model, int[] sizes, double[][] weights, double[][] biases,
+                          boolean[] tanh) {
+        this.source = source;
+        this.model = model;
+        this.sizes = sizes;
+        this.weights = weights;
+        this.biases = biases;
+        this.tanh = tanh;
+
+        activations = scratch();
+        batch_activations = new double[sizes.length][];
+    }
+
+    /**
+     * Compile a network that takes normalized inputs as-is.
+     */
+    public static FrozenNetwork compile(BasicNetwork network) {
+        return compile(network, null);
+    }
+
+    /**
+     * Compile a network, folding the normalization of model into the first layer. The model's
+     * statistics are per frame of 22 features, so they are repeated for every history frame.
+     */
+    public static FrozenNetwork compile(BasicNetwork network, DataModel model) {
+        int layer_count = network.getLayerCount();
+        int[] sizes = new int[layer_count];
+        for (int layer = 0; layer < layer_count; ++layer)
+            sizes[layer] = network.getLayerNeuronCount(layer);
+
+        double[][] weights = new double[layer_count - 1][];
+        double[][] biases = new double[layer_count - 1][];
+        boolean[] tanh = new boolean[layer_count - 1];
+
+        for (int layer = 0; layer < layer_count - 1; ++layer) {
+            int n_in = sizes[layer];
+            int n_out = sizes[layer + 1];
+
+            ActivationFunction activation = network.getActivation(layer + 1);
+            if (activation instanceof ActivationTANH)
+                tanh[layer] = true;
+            else if (!(activation instanceof ActivationLinear))
+                throw new IllegalArgumentException("Unsupported activation function: " + activation);
+
+            weights[layer] = new double[n_out * n_in];
+            biases[layer] = new double[n_out];
+        }
+
+        FrozenNetwork frozen = new FrozenNetwork(network, model, sizes, weights, biases, tanh);
+        frozen.refresh();
+
+        return frozen;
+    }
+
+    /**
+     * Copy the current weights of the source network (and the model's current normalization)
+     * into this one.
+     */
+    public void refresh() {
+        for (int layer = 0; layer < sizes.length - 1; ++layer) {
+            int n_in = sizes[layer];
+            int n_out = sizes[layer + 1];
+            double[] w = weights[layer];
+            double[] b = biases[layer];
+            // in Encog a layer's bias neuron feeds the next layer
+            boolean biased = source.isLayerBiased(layer);
+            double bias_activation = biased ? source.getLayerBiasActivation(layer) : 0;
+            for (int to = 0; to < n_out; ++to) {
+                for (int from = 0; from < n_in; ++from)
+                    w[to * n_in + from] = source.getWeight(layer, from, to);
+
+                b[to] = biased ? source.getWeight(layer, n_in, to) * bias_activation : 0;
+            }
+        }
+
+        if (model != null)
+            fold(model, sizes[0], weights[0], biases[0], sizes[1]);
+    }
+
+    /**
+     * w * (x - mean) / stddev + b == (w / stddev) * x + (b - w * mean / stddev)
+     */
+    private static void fold(DataModel model, int n_in, double[] w, double[] b, int n_out) {
+        double[] means = model.getMeans();
+        double[] stddevs = model.getStddevs();
+        if (means == null || stddevs == null)
+            throw new IllegalStateException("The data model has no normalization statistics");
+
+        for (int to = 0; to < n_out; ++to) {
+            int row = to * n_in;
+            for (int from = 0; from < n_in; ++from) {
+                int column = from % means.length;
+                double scaled = w[row + from] / stddevs[column];
+                w[row + from] = scaled;
+                b[to] -= scaled * means[column];
+            }
+        }
+    }
+
+    public int getInputCount() {
+        return sizes[0];
+    }
+
+    public int getOutputCount() {
+        return sizes[sizes.length - 1];
+    }
+
+    /**
+     * Scratch space for the hidden layers, the output goes straight into the caller's array.
+     */
+    public double[][] scratch() {
+        double[][] scratch = new double[sizes.length][];
+        for (int layer = 1; layer < sizes.length - 1; ++layer)
+            scratch[layer] = new double[sizes[layer]];
+        return scratch;
+    }
+
+    public void compute(double[] input, double[] output) {
+        compute(input, output, activations);
+    }
+
+    /**
+     * compute() with the caller's scratch space from scratch() of a network with the same
+     * layer sizes, which only reads this network's fields.
+     */
+    public void compute(double[] input, double[] output, double[][] scratch) {
+        double[] in = input;
+        int last = sizes.length - 2;
+        for (int layer = 0; layer <= last; ++layer) {
+            double[] out = layer == last ? output : scratch[layer + 1];
+            if (tanh[layer])
+                tanhLayer(in, sizes[layer], weights[layer], biases[layer], out, sizes[layer + 1]);
+            else
+                linearLayer(in, sizes[layer], weights[layer], biases[layer], out, sizes[layer + 1]);
+            in = out;
+        }
+    }
+
+    /**
+     * compute() for rows inputs at once. The inputs are stored back to back, and so are the
+     * outputs. Each layer is evaluated for the whole batch before the next one, one output
+     * neuron at a time, so a neuron's weights stay in cache for all rows instead of being
+     * reloaded for every input.
+     */
+    public void computeBatch(double[] inputs, int rows, double[] outputs) {
+        double[] in = inputs;
+        int last = sizes.length - 2;
+        for (int layer = 0; layer <= last; ++layer) {
+            int n_in = sizes[layer];
+            int n_out = sizes[layer + 1];
+            double[] out = layer == last ? outputs : batchActivations(layer + 1, rows * n_out);
+            double[] w = weights[layer];
+            double[] b = biases[layer];
+
+            for (int to = 0; to < n_out; ++to) {
+                int row = to * n_in;
+                for (int r = 0; r < rows; ++r) {
+                    double sum = dot(in, r * n_in, n_in, w, row) + b[to];
+                    out[r * n_out + to] = tanh[layer] ? tanh(sum) : sum;
+                }
+            }
+            in = out;
+        }
+    }
+
+    private double[] batchActivations(int layer, int length) {
+        if (batch_activations[layer] == null || batch_activations[layer].length < length)
+            batch_activations[layer] = new double[length];
+        return batch_activations[layer];
+    }
+
+    private static void tanhLayer(double[] in, int n_in, double[] w, double[] b, double[] out, int n_out) {
+        for (int to = 0; to < n_out; ++to)
+            out[to] = tanh(dot(in, 0, n_in, w, to * n_in) + b[to]);
+    }
+
+    /**
+     * tanh(x) = 1 - 2 / (e^2x + 1). Math.tanh isn't an intrinsic and costs more than the rest of
+     * the layer put together; Math.exp is, and this stays within about 1e-16 of Math.tanh.
+     */
+    private static double tanh(double x) {
+        return 1 - 2 / (Math.exp(2 * x) + 1);
+    }
+
+    private static void linearLayer(double[] in, int n_in, double[] w, double[] b, double[] out, int n_out) {
+        for (int to = 0; to < n_out; ++to)
+            out[to] = dot(in, 0, n_in, w, to * n_in) + b[to];
+    }
+
+    /**
+     * Dot product of the n values of in from offset with the row of w starting at row, unrolled
+     * by four.
+     */
+    private static double dot(double[] in, int offset, int n, double[] w, int row) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += w[row + i] * in[offset + i];
+            s1 += w[row + i + 1] * in[offset + i + 1];
+            s2 += w[row + i + 2] * in[offset + i + 2];
+            s3 += w[row + i + 3] * in[offset + i + 3];
+        }
+        for (; i < n; ++i)
+            s0 += w[row + i] * in[offset + i];
+
+        return (s0 + s1) + (s2 + s3);
+    }
+}
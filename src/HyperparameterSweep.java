@@ -0,0 +1,228 @@
+import org.encog.neural.networks.BasicNetwork;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Train networks for a grid of hidden layer sizes, history lengths and training settings and
+ * rank them by their validation error, instead of trying configurations one by one.
+ *
+ * The road and dirt data is loaded (and normalized) once and shared by all candidates, which
+ * are trained in parallel with MiniBatchTrainer. After training, every candidate's compiled
+ * FrozenNetwork is timed on its own so the latencies aren't disturbed by the other trainers.
+ * With samples > 0 only that many random configurations from the grid are tried.
+ */
+public class HyperparameterSweep {
+    private static volatile double sink;
+
+    public int[] hiddens = {8, 12, 16, 24, 32};
+    public int[] histories = {0, 1, 2, 5};
+    public int[] max_epochs = {300};
+    public double[] learning_rates = {0.001, 0.003};
+    public int[] batch_sizes = {64};
+    public int samples = 0;
+    public int threads = Runtime.getRuntime().availableProcessors();
+    public long seed = 42;
+
+    public String training_folder = "train_data";
+    public String dirt_folder = "dirt_data";
+
+    /**
+     * One configuration and, once trained, its results.
+     */
+    public static class Candidate {
+        public final int hidden;
+        public final int history;
+        public final int max_epochs;
+        public final double learning_rate;
+        public final int batch_size;
+
+        public NeuralNetwork network;
+        public int road_epochs;
+        public int dirt_epochs;
+        public double road_error;
+        public double dirt_error;
+        public double latency;
+
+        public Candidate(int hidden, int history, int max_epochs, double learning_rate, int batch_size) {
+            this.hidden = hidden;
+            this.history = history;
+            this.max_epochs = max_epochs;
+            this.learning_rate = learning_rate;
+            this.batch_size = batch_size;
+        }
+
+        /**
+         * The validation error used for ranking, the mean of the road and dirt errors.
+         */
+        public double error() {
+            return (road_error + dirt_error) / 2;
+        }
+
+        /**
+         * The number of weights and biases of the road and dirt networks.
+         */
+        public int weights() {
+            return network.road_network.encodedArrayLength() + network.dirt_network.encodedArrayLength();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hidden %d, history %d, lr %s, batch %d, epochs %d",
+                    hidden, history, learning_rate, batch_size, max_epochs);
+        }
+    }
+
+    public List<Candidate> candidates() {
+        List<Candidate> candidates = new ArrayList<>();
+        for (int hidden : hiddens)
+            for (int history : histories)
+                for (int epochs : max_epochs)
+                    for (double learning_rate : learning_rates)
+                        for (int batch_size : batch_sizes)
+                            candidates.add(new Candidate(hidden, history, epochs, learning_rate, batch_size));
+
+        if (samples > 0 && samples < candidates.size()) {
+            Collections.shuffle(candidates, new Random(seed));
+            candidates = new ArrayList<>(candidates.subList(0, samples));
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Train and time all candidates, returning them best first.
+     */
+    public List<Candidate> run() {
+        DataModel road_model = new DataModel();
+        DataModel dirt_model = new DataModel();
+        Data road = NeuralNetwork.load_training_data(training_folder, road_model);
+        Data dirt = NeuralNetwork.load_training_data(dirt_folder, dirt_model);
+
+        List<Candidate> candidates = candidates();
+        System.out.printf("Training %d configurations on %d thread(s)\n", candidates.size(), threads);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Future<?>> futures = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            futures.add(executor.submit(() -> {
+                train(candidate, road, dirt, road_model, dirt_model);
+                System.out.printf("%s: validation error %f\n", candidate, candidate.error());
+            }));
+        }
+
+        List<Candidate> trained = new ArrayList<>();
+        try {
+            for (int i = 0; i < futures.size(); ++i) {
+                try {
+                    futures.get(i).get();
+                    trained.add(candidates.get(i));
+                } catch (ExecutionException e) {
+                    System.out.printf("%s failed: %s\n", candidates.get(i), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+
+        // time the networks one at a time, now that nothing else is running
+        for (Candidate candidate : trained)
+            candidate.latency = latency(candidate.network.road_network, road, candidate.history);
+
+        trained.sort(Comparator.comparingDouble(Candidate::error));
+        return trained;
+    }
+
+    private void train(Candidate candidate, Data road, Data dirt, DataModel road_model, DataModel dirt_model) {
+        MiniBatchTrainer trainer = new MiniBatchTrainer();
+        trainer.max_epochs = candidate.max_epochs;
+        trainer.learning_rate = candidate.learning_rate;
+        trainer.batch_size = candidate.batch_size;
+        trainer.seed = seed;
+        trainer.verbose = false;
+
+        NeuralNetwork network = new NeuralNetwork(candidate.hidden, candidate.history);
+        network.road_model = road_model;
+        network.dirt_model = dirt_model;
+
+        candidate.road_error = trainer.train("road", network.road_network, road, candidate.history);
+        candidate.road_epochs = trainer.epochs;
+        candidate.dirt_error = trainer.train("dirt", network.dirt_network, dirt, candidate.history);
+        candidate.dirt_epochs = trainer.epochs;
+        candidate.network = network;
+    }
+
+    /**
+     * The average time in ns the compiled network takes for one input, over windows of the data.
+     */
+    private static double latency(BasicNetwork network, Data data, int history) {
+        FrozenNetwork frozen = FrozenNetwork.compile(network);
+        WindowedDataSet windows = new WindowedDataSet(data, history, history);
+        double[][] inputs = new double[Math.min(1024, windows.size())][];
+        for (int i = 0; i < inputs.length; ++i)
+            inputs[i] = windows.get(i).getInputArray();
+        double[] output = new double[frozen.getOutputCount()];
+        if (inputs.length == 0)
+            return 0;
+
+        double result = 0;
+        long best = Long.MAX_VALUE;
+        int calls = 200 * inputs.length;
+        // the first rounds are warmup, keep the fastest of the rest
+        for (int round = 0; round < 10; ++round) {
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; ++i) {
+                frozen.compute(inputs[i % inputs.length], output);
+                result += output[0];
+            }
+            long elapsed = System.nanoTime() - start;
+            if (round >= 3)
+                best = Math.min(best, elapsed);
+        }
+
+        sink = result;
+        return (double) best / calls;
+    }
+
+    public static void print(List<Candidate> ranked) {
+        System.out.printf("%4s %6s %7s %8s %5s %10s %10s %10s %10s %8s %10s\n", "rank", "hidden", "history",
+                "lr", "batch", "epochs", "road err", "dirt err", "mean err", "weights", "ns/input");
+        for (int i = 0; i < ranked.size(); ++i) {
+            Candidate c = ranked.get(i);
+            System.out.printf("%4d %6d %7d %8s %5d %4d/%-5d %10.6f %10.6f %10.6f %8d %10.1f\n", i + 1,
+                    c.hidden, c.history, c.learning_rate, c.batch_size, c.road_epochs, c.dirt_epochs,
+                    c.road_error, c.dirt_error, c.error(), c.weights(), c.latency);
+        }
+    }
+
+    /**
+     * Run the sweep, print the ranking and store the best network as the driver's genome. The
+     * Q networks of the currently stored genome are kept, since the sweep doesn't train them.
+     */
+    public Candidate sweep() {
+        List<Candidate> ranked = run();
+        print(ranked);
+        if (ranked.isEmpty())
+            return null;
+
+        Candidate best = ranked.get(0);
+        NeuralNetwork current = NeuralNetwork.loadGenome();
+        if (current != null) {
+            best.network.q_network = current.q_network;
+            best.network.dirt_q = current.dirt_q;
+        }
+        best.network.storeGenome();
+        System.out.printf("Stored %s\n", best);
+
+        return best;
+    }
+}
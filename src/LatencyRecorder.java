@@ -0,0 +1,119 @@
+import java.util.Arrays;
+
+/**
+ * Fixed-size latency histogram in the style of HdrHistogram: values are bucketed by their power
+ * of two, and each power of two is split into 32 linear sub-buckets, so every recorded value is
+ * accurate to about 3%. Recording is a couple of shifts and an array increment, and the memory
+ * use never grows, so it is cheap enough to wrap every control tick.
+ *
+ * Not thread-safe; every driver records its own ticks.
+ */
+public class LatencyRecorder {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values from 2^40 ns (about 18 minutes) upwards all land in the last bucket
+    private static final int MAX_EXPONENT = 40;
+
+    private final long[] counts = new long[(MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS];
+    private long total;
+    private long max;
+    private long over_budget;
+    private long budget;
+
+    /**
+     * budget: a tick taking longer than this many nanoseconds is counted as late
+     */
+    public LatencyRecorder(long budget) {
+        this.budget = budget;
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+
+        counts[index(nanos)]++;
+        total++;
+        if (nanos > max)
+            max = nanos;
+        if (nanos > budget)
+            over_budget++;
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        total = 0;
+        max = 0;
+        over_budget = 0;
+    }
+
+    public void setBudget(long budget) {
+        this.budget = budget;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public long getCount() {
+        return total;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getOverBudget() {
+        return over_budget;
+    }
+
+    /**
+     * The latency in nanoseconds below which the given percentage (0-100) of the ticks fall.
+     * Reported as the highest value of its bucket, but never more than the recorded maximum.
+     */
+    public long getPercentile(double percentile) {
+        if (total == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= target)
+                return Math.min(highestValue(i), max);
+        }
+
+        return max;
+    }
+
+    public String summary() {
+        return String.format("%d ticks, p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms, %d over the %.1f ms budget",
+                total, millis(getPercentile(50)), millis(getPercentile(99)), millis(getPercentile(99.9)),
+                millis(max), over_budget, millis(budget));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT)
+            return (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS - 1;
+
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+
+        int shift = index / SUB_BUCKETS - 1;
+        long low = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+
+        return low + (1L << shift) - 1;
+    }
+}
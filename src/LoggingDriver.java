@@ -24,6 +24,15 @@ public class LoggingDriver extends DefaultDriver {
         this.human = human;
         keylog_action = new Action();
 
+        // only a human needs the key listener, which also keeps the simulator runs headless
+        if (human)
+            showKeylogger();
+
+        sensor_log = new ArrayList<>();
+        System.out.println("==== Logging output ====");
+    }
+
+    private void showKeylogger() {
         frame = new JFrame("Keylogger");
         frame.setBounds(50, 100, 300, 300);
         frame.addKeyListener(new KeyListener() {
@@ -69,9 +78,6 @@ public class LoggingDriver extends DefaultDriver {
             }
         });
         frame.setVisible(true);
-
-        sensor_log = new ArrayList<>();
-        System.out.println("==== Logging output ====");
     }
 
     @Override
@@ -123,5 +129,7 @@ public class LoggingDriver extends DefaultDriver {
         } catch (IOException e) {
             System.out.println(e.getMessage());
         }
+
+        super.exit();
     }
 }
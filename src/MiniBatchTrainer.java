@@ -0,0 +1,194 @@
+import org.encog.ml.data.MLDataPair;
+import org.encog.ml.data.basic.BasicMLDataPair;
+import org.encog.neural.flat.FlatNetwork;
+import org.encog.neural.networks.BasicNetwork;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * An alternative to training with full batch RPROP for a fixed number of epochs: shuffled
+ * mini-batches with Adam, with part of the data held out for validation. Training stops once
+ * the validation error hasn't improved for `patience` epochs, and the network is left with
+ * the weights of the best epoch.
+ *
+ * The validation set is made of whole files (so whole tracks) where possible, so the error
+ * says something about tracks the network hasn't seen; with a single file its last part is
+ * used instead. Windows never span two files. Without any validation samples the training
+ * error is watched instead, so training still stops once it levels off.
+ *
+ * Every mini-batch is one full-batch Adam iteration over a view of batch_size training frames,
+ * which is refilled from the shuffled frames before each step, so every batch's gradient is
+ * taken at the weights the previous batch left. The frames that don't fill a whole batch are
+ * left out of that epoch; they're shuffled into the next one.
+ */
+public class MiniBatchTrainer {
+    public int batch_size = 64;
+    public double learning_rate = 0.001;
+    public int max_epochs = 500;
+    public int patience = 20;
+    // improvements smaller than this don't reset the patience
+    public double min_improvement = 1e-6;
+    public double validation_fraction = 0.2;
+    public long seed = 42;
+    public boolean verbose = true;
+
+    // the outcome of the last call to train
+    public int epochs;
+    public int best_epoch;
+    public double training_error;
+    public double validation_error;
+
+    /**
+     * Train network on the windows of history + 1 frames in data, returning the best
+     * validation error (the mean squared error per output), or training error if there are no
+     * validation samples.
+     */
+    public double train(String name, BasicNetwork network, Data data, int history) {
+        List<int[]> split = split(data, history, new Random(seed));
+        return train(name, network, data, history, split.get(0), split.get(1));
+    }
+
+    /**
+     * Same as above, with the frames the training and validation windows end at given.
+     */
+    public double train(String name, BasicNetwork network, Data data, int history, int[] training_frames,
+                        int[] validation_frames) {
+        Random random = new Random(seed);
+        WindowedDataSet training = new WindowedDataSet(data, history, training_frames);
+        WindowedDataSet validation = new WindowedDataSet(data, history, validation_frames);
+        if (verbose)
+            System.out.printf("%s: %d training and %d validation samples\n", name, training.size(), validation.size());
+
+        if (training_frames.length == 0)
+            throw new IllegalArgumentException(name + " has no training samples");
+        int[] batch_frames = Arrays.copyOf(training_frames, Math.max(1, Math.min(batch_size, training_frames.length)));
+        int batches = training_frames.length / batch_frames.length;
+        AdamPropagation train = new AdamPropagation(network, new WindowedDataSet(data, history, batch_frames),
+                learning_rate);
+        // one batch is too small to be worth splitting over threads
+        train.setThreadCount(1);
+
+        // an empty validation set always has an error of 0, which no epoch would improve on
+        WindowedDataSet watched = validation.size() > 0 ? validation : training;
+        FlatNetwork flat = network.getFlat();
+        double[] best_weights = flat.getWeights().clone();
+        validation_error = error(flat, watched);
+        best_epoch = 0;
+
+        for (epochs = 1; epochs <= max_epochs; ++epochs) {
+            training.shuffle(random);
+            double sum = 0;
+            for (int batch = 0; batch < batches; ++batch) {
+                System.arraycopy(training_frames, batch * batch_frames.length, batch_frames, 0, batch_frames.length);
+                train.iteration();
+                sum += train.getError();
+            }
+            training_error = batches == 0 ? 0 : sum / batches;
+
+            double error = error(flat, watched);
+            if (error < validation_error - min_improvement) {
+                validation_error = error;
+                best_epoch = epochs;
+                System.arraycopy(flat.getWeights(), 0, best_weights, 0, best_weights.length);
+            }
+
+            if (verbose && epochs % 10 == 0)
+                System.out.printf("%s epoch #%d: Error %f, validation %f\n", name, epochs, training_error, error);
+
+            if (epochs - best_epoch >= patience)
+                break;
+        }
+        epochs = Math.min(epochs, max_epochs);
+
+        train.finishTraining();
+        System.arraycopy(best_weights, 0, flat.getWeights(), 0, best_weights.length);
+        if (verbose)
+            System.out.printf("%s: stopped after %d epochs, best validation error %f at epoch %d\n",
+                    name, epochs, validation_error, best_epoch);
+
+        return validation_error;
+    }
+
+    /**
+     * The mean squared error of network on dataset, the same measure Encog reports.
+     */
+    public static double error(FlatNetwork network, WindowedDataSet dataset) {
+        MLDataPair pair = BasicMLDataPair.createPair(dataset.getInputSize(), dataset.getIdealSize());
+        double[] output = new double[dataset.getIdealSize()];
+
+        double sum = 0;
+        for (int i = 0; i < dataset.size(); ++i) {
+            dataset.getRecord(i, pair);
+            network.compute(pair.getInputArray(), output);
+            double[] ideal = pair.getIdealArray();
+            for (int j = 0; j < output.length; ++j)
+                sum += (ideal[j] - output[j]) * (ideal[j] - output[j]);
+        }
+
+        return dataset.size() == 0 ? 0 : sum / ((double) dataset.size() * output.length);
+    }
+
+    /**
+     * Pick the frames used for training and for validation.
+     */
+    private List<int[]> split(Data data, int history, Random random) {
+        int[] starts = data.file_starts == null || data.file_starts.length == 0 ? new int[]{0} : data.file_starts;
+
+        List<Integer> files = new ArrayList<>();
+        for (int i = 0; i < starts.length; ++i)
+            files.add(i);
+        Collections.shuffle(files, random);
+
+        // hold out whole files until there's enough validation data, but keep one for training
+        boolean[] validate = new boolean[starts.length];
+        int validation_rows = 0;
+        for (int i = 0; i + 1 < files.size() && validation_rows < validation_fraction * data.rows; ++i) {
+            int file = files.get(i);
+            validate[file] = true;
+            validation_rows += end(data, starts, file) - starts[file];
+        }
+
+        List<int[]> training = new ArrayList<>();
+        List<int[]> validation = new ArrayList<>();
+        for (int file = 0; file < starts.length; ++file) {
+            int start = starts[file] + history;
+            int end = end(data, starts, file);
+            if (starts.length == 1) {
+                // a single file, validate on its last part
+                int boundary = Math.max(start, end - (int) (validation_fraction * (end - start)));
+                training.add(new int[]{start, boundary});
+                validation.add(new int[]{boundary + history, end});
+            } else {
+                (validate[file] ? validation : training).add(new int[]{start, end});
+            }
+        }
+
+        List<int[]> frames = new ArrayList<>();
+        frames.add(frames(training));
+        frames.add(frames(validation));
+        return frames;
+    }
+
+    private static int end(Data data, int[] starts, int file) {
+        return file + 1 < starts.length ? starts[file + 1] : data.rows;
+    }
+
+    private static int[] frames(List<int[]> ranges) {
+        int count = 0;
+        for (int[] range : ranges)
+            count += Math.max(0, range[1] - range[0]);
+
+        int[] frames = new int[count];
+        int i = 0;
+        for (int[] range : ranges) {
+            for (int frame = range[0]; frame < range[1]; ++frame)
+                frames[i++] = frame;
+        }
+
+        return frames;
+    }
+}
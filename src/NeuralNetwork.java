@@ -1,24 +1,33 @@
 import org.encog.engine.network.activation.ActivationLinear;
 import org.encog.engine.network.activation.ActivationTANH;
 import org.encog.ml.data.MLDataSet;
-import org.encog.ml.data.basic.BasicMLData;
-import org.encog.ml.data.basic.BasicMLDataPair;
-import org.encog.ml.data.basic.BasicMLDataSet;
 import org.encog.neural.networks.BasicNetwork;
 import org.encog.neural.networks.layers.BasicLayer;
 import org.encog.neural.networks.training.propagation.Propagation;
-import org.encog.neural.networks.training.propagation.resilient.ResilientPropagation;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 public class NeuralNetwork implements Serializable {
 
     private static final long serialVersionUID = -88L;
+    // the transitions per batch and the number of batches replayed per retrain
+    public static final int REPLAY_BATCH = 256;
+    public static final int REPLAY_STEPS = 1000;
+    // how often a retrain replays every transition in the buffer on average, up to REPLAY_STEPS
+    public static final int REPLAY_PASSES = 50;
     public int history;
 
     public DataModel road_model;
@@ -31,6 +40,18 @@ public class NeuralNetwork implements Serializable {
 
     public double[] acc_offsets = {-0.5, 0, 0.5};
 
+    // save the training state every this many epochs (0 to never), and continue from it
+    public transient int checkpoint_interval;
+    public transient boolean resume;
+    // the checkpoints of the finished jobs, kept until their networks are stored
+    private transient List<Path> finished;
+
+    // compiled copies of the networks used for driving, rebuilt when a network is replaced or retrained
+    private transient FrozenNetwork road_frozen;
+    private transient FrozenNetwork dirt_frozen;
+    private transient FrozenNetwork q_frozen;
+    private transient FrozenNetwork dirt_q_frozen;
+
     /**
      * hidden: the number of nodes to use in the hidden layer
      * epochs: the number of epochs to train for
@@ -74,118 +95,465 @@ public class NeuralNetwork implements Serializable {
     }
 
     public void train(int epochs, String training_folder, String dirt_folder) {
-        System.out.println("Training road");
-        train(epochs, training_folder, road_network, road_model);
-        System.out.println("Training dirt");
-        train(epochs, dirt_folder, dirt_network, dirt_model);
+        train(epochs, training_folder, dirt_folder, Runtime.getRuntime().availableProcessors());
     }
 
-    public void train(int epochs, String training_folder, BasicNetwork network, DataModel model) {
-        // get all the csv files in the training directory
-        List<String> filenames = new ArrayList<>();
+    /**
+     * Train the road and dirt networks at the same time, sharing the given number of threads.
+     */
+    public void train(int epochs, String training_folder, String dirt_folder, int threads) {
+        train_all(epochs, training_folder, dirt_folder, 0, threads);
+    }
+
+    /**
+     * Train the road and dirt networks for epochs and, if q_epochs > 0, the two Q networks on
+     * q_data/ and q_dirt/ for q_epochs, all at the same time. See train_concurrently for how the
+     * threads are shared.
+     */
+    public void train_all(int epochs, String training_folder, String dirt_folder, int q_epochs, int threads) {
+        List<TrainingJob> jobs = new ArrayList<>();
+        jobs.add(new TrainingJob("road", road_network, road_model, load_training_set(training_folder, road_model), epochs));
+        jobs.add(new TrainingJob("dirt", dirt_network, dirt_model, load_training_set(dirt_folder, dirt_model), epochs));
+        if (q_epochs > 0) {
+            jobs.add(new TrainingJob("q road", q_network, null, load_q_set("q_data"), q_epochs));
+            jobs.add(new TrainingJob("q dirt", dirt_q, null, load_q_set("q_dirt"), q_epochs));
+        }
+
+        train_concurrently(jobs, threads);
+    }
+
+    /**
+     * Train the road and dirt networks with shuffled mini-batches and early stopping instead of
+     * a fixed number of RPROP epochs, see MiniBatchTrainer.
+     */
+    public void train(MiniBatchTrainer trainer, String training_folder, String dirt_folder) {
+        trainer.train("road", road_network, load_training_data(training_folder, road_model), history);
+        trainer.train("dirt", dirt_network, load_training_data(dirt_folder, dirt_model), history);
+        thaw();
+    }
+
+    /**
+     * Fine-tune the road and dirt networks on the logs added to the folders since they were
+     * trained, instead of training new networks on everything. The new files are added to the
+     * normalization statistics, and the networks are trained on their samples plus `replay`
+     * times as many samples from the old files, so they don't forget the old tracks.
+     */
+    public void train_incremental(MiniBatchTrainer trainer, double replay, String training_folder,
+                                  String dirt_folder) {
+        fine_tune("road", road_network, road_model, training_folder, trainer, replay);
+        fine_tune("dirt", dirt_network, dirt_model, dirt_folder, trainer, replay);
+        thaw();
+    }
+
+    private void fine_tune(String name, BasicNetwork network, DataModel model, String folder,
+                           MiniBatchTrainer trainer, double replay) {
+        List<String> filenames = list_csv(folder);
+        HashSet<String> added = new HashSet<>(model.new_sources(filenames));
+        boolean lost = model.lost_sources(filenames);
+        if (added.isEmpty() && !lost) {
+            System.out.printf("%s: no new logs in %s\n", name, folder);
+            return;
+        }
+        if (lost)
+            System.out.printf("%s: logs were removed from %s, computing the normalization again\n", name, folder);
+        System.out.printf("%s: fine-tuning on %s\n", name, added);
+
+        double[] old_means = model.getMeans();
+        double[] old_stddevs = model.getStddevs();
+        Data data;
         try {
-            Files.list(Paths.get(training_folder))
-                    .map(String::valueOf)
-                    .filter(path -> path.endsWith(".csv"))
-                    .forEach(path -> filenames.add(path));
+            data = model.load_data_incremental(filenames, Paths.get(folder, DatasetCache.FILENAME));
         } catch (IOException e) {
             System.out.println(e.getMessage());
+            return;
+        }
+        clamp_actions(data);
+        if (old_means != null)
+            renormalize(network, old_means, old_stddevs, model.getMeans(), model.getStddevs());
+
+        // the windows of the new files, and a random sample of those of the old ones
+        List<Integer> fresh = new ArrayList<>();
+        List<Integer> old = new ArrayList<>();
+        for (int file = 0; file < filenames.size(); ++file) {
+            int end = file + 1 < filenames.size() ? data.file_starts[file + 1] : data.rows;
+            List<Integer> frames = added.contains(filenames.get(file)) ? fresh : old;
+            for (int frame = data.file_starts[file] + history; frame < end; ++frame)
+                frames.add(frame);
+        }
+        // only logs were removed: the network just follows the new normalization
+        if (fresh.isEmpty())
+            return;
+        Random random = new Random(trainer.seed);
+        Collections.shuffle(old, random);
+        List<Integer> frames = new ArrayList<>(fresh);
+        frames.addAll(old.subList(0, Math.min(old.size(), (int) (replay * fresh.size()))));
+        Collections.shuffle(frames, random);
+
+        int validation = (int) (trainer.validation_fraction * frames.size());
+        int[] training_frames = new int[frames.size() - validation];
+        int[] validation_frames = new int[validation];
+        for (int i = 0; i < frames.size(); ++i) {
+            if (i < training_frames.length)
+                training_frames[i] = frames.get(i);
+            else
+                validation_frames[i - training_frames.length] = frames.get(i);
         }
-        System.out.printf("Training on %s\n", filenames);
 
-        MLDataSet dataset = new BasicMLDataSet();
+        trainer.train(name, network, data, history, training_frames, validation_frames);
+    }
 
-        // load all the training files into the dataset
-        try {
-            Data data = model.load_data(filenames);
-            for (int i = 0; i < data.X.length; ++i) {
-                data.Y[i][0] = clamp(data.Y[i][0], 0, 1);
-                data.Y[i][1] = clamp(data.Y[i][1], 0, 1);
-                data.Y[i][2] = clamp(data.Y[i][2], -1, 1);
+    /**
+     * Scale the input weights of network so it sees the same inputs with the new
+     * normalization as it did with the old one. The shift of the means can't be folded in
+     * because the hidden layer has no bias, fine-tuning takes care of that.
+     */
+    private static void renormalize(BasicNetwork network, double[] old_means, double[] old_stddevs,
+                                    double[] means, double[] stddevs) {
+        for (int i = 0; i < network.getInputCount(); ++i) {
+            int column = i % means.length;
+            double scale = stddevs[column] / old_stddevs[column];
+            for (int j = 0; j < network.getLayerNeuronCount(1); ++j)
+                network.setWeight(0, i, j, network.getWeight(0, i, j) * scale);
+        }
+    }
 
-                if (i < history + 1)
-                    continue;
+    public void train(int epochs, String training_folder, BasicNetwork network, DataModel model) {
+        run(new TrainingJob(training_folder, network, model, load_training_set(training_folder, model), epochs), 0);
+        thaw();
+    }
+
+    public void retrain_q_road(int epochs) {
+        run(new TrainingJob("q road", q_network, null, load_q_set("q_data"), epochs), 0);
+        thaw();
+    }
+
+    public void retrain_q_dirt(int epochs) {
+        run(new TrainingJob("q dirt", dirt_q, null, load_q_set("q_dirt"), epochs), 0);
+        thaw();
+    }
 
-                double[] new_x = new double[network.getInputCount()];
-                // fill the input array
-                ArrayList<Double> input_list = new ArrayList<>();
-                for (int h = history; h >= 0; --h) {
-                    double[] t_minus_h = data.X[i - h];
-                    for (double x : t_minus_h) {
-                        input_list.add(x);
+    /**
+     * Retrain both Q networks at the same time, sharing the given number of threads.
+     */
+    public void retrain_q(int epochs, int threads) {
+        List<TrainingJob> jobs = new ArrayList<>();
+        jobs.add(new TrainingJob("q road", q_network, null, load_q_set("q_data"), epochs));
+        jobs.add(new TrainingJob("q dirt", dirt_q, null, load_q_set("q_dirt"), epochs));
+
+        train_concurrently(jobs, threads);
+    }
+
+    /**
+     * Same as above, with mini-batches and early stopping.
+     */
+    public void retrain_q(MiniBatchTrainer trainer) {
+        trainer.train("q road", q_network, load_q_training_data("q_data"), 0);
+        trainer.train("q dirt", dirt_q, load_q_training_data("q_dirt"), 0);
+        thaw();
+    }
+
+    /**
+     * Retrain the road or dirt Q network on batches of transitions sampled from buffer by
+     * priority, with a single gradient step per batch (see QBatchUpdate). The sampled
+     * transitions get their TD error as their new priority. A small buffer gets fewer steps,
+     * so its transitions aren't replayed over and over.
+     */
+    public void retrain_q(ReplayBuffer buffer, boolean dirt, double gamma, Random random) {
+        long steps = ((long) REPLAY_PASSES * buffer.size() + REPLAY_BATCH - 1) / REPLAY_BATCH;
+        retrain_q(buffer, dirt, gamma, random, REPLAY_BATCH, (int) Math.min(REPLAY_STEPS, steps));
+    }
+
+    public void retrain_q(ReplayBuffer buffer, boolean dirt, double gamma, Random random, int batch_size, int steps) {
+        if (buffer.size() == 0 || steps <= 0)
+            return;
+
+        BasicNetwork network = dirt ? dirt_q : q_network;
+        QBatchUpdate update = new QBatchUpdate(network, buffer.getStateSize(), batch_size, gamma, 0.001);
+        int[] indices = new int[batch_size];
+        double error = 0;
+        for (int step = 1; step <= steps; ++step) {
+            buffer.sample(random, indices);
+            double[] errors = update.step(buffer, indices);
+            for (int i = 0; i < batch_size; ++i)
+                buffer.updatePriority(indices[i], errors[i]);
+            error = update.getError();
+        }
+        update.finishTraining();
+
+        System.out.printf("%s: %d batches of %d replayed transitions, error %f\n",
+                dirt ? "q dirt" : "q road", steps, batch_size, error);
+        thaw();
+    }
+
+    /**
+     * Retrain the road or dirt Q network from all transition logs in folder. The logs are
+     * streamed through a replay buffer of capacity transitions, which is replayed every time
+     * it has been filled with new ones and once more at the end, so the logs of any number of
+     * races never take more memory than the buffer.
+     */
+    public void retrain_q_logs(String folder, boolean dirt, double gamma, Random random, int capacity) {
+        List<String> logs = list_files(folder, TransitionLog.EXTENSION);
+        System.out.printf("Replaying %s\n", logs);
+
+        ReplayBuffer buffer = new ReplayBuffer(capacity, 22);
+        int fresh = 0;
+        for (String log : logs) {
+            try (TransitionLog.Reader reader = new TransitionLog.Reader(Paths.get(log))) {
+                if (reader.getStateSize() != buffer.getStateSize()) {
+                    System.out.printf("Skipping %s, it holds states of %d values instead of %d\n", log,
+                            reader.getStateSize(), buffer.getStateSize());
+                    continue;
+                }
+                while (reader.next(buffer)) {
+                    if (++fresh == capacity) {
+                        retrain_q(buffer, dirt, gamma, random);
+                        fresh = 0;
                     }
                 }
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+
+        if (fresh > 0)
+            retrain_q(buffer, dirt, gamma, random);
+    }
 
-                for (int j = 0; j < new_x.length; ++j) {
-                    new_x[j] = input_list.get(j);
+    /**
+     * A network to train along with its training set.
+     */
+    private static class TrainingJob {
+        final String name;
+        final BasicNetwork network;
+        // the normalization of the data, null if it isn't normalized
+        final DataModel model;
+        final MLDataSet dataset;
+        final int epochs;
+
+        TrainingJob(String name, BasicNetwork network, DataModel model, MLDataSet dataset, int epochs) {
+            this.name = name;
+            this.network = network;
+            this.model = model;
+            this.dataset = dataset;
+            this.epochs = epochs;
+        }
+
+        // the work per epoch is roughly the number of samples times the number of weights
+        double cost() {
+            return (double) dataset.getRecordCount() * network.encodedArrayLength();
+        }
+    }
+
+    /**
+     * Run the jobs in parallel with a total budget of threads. Every job gets at least one
+     * thread, the rest are divided in proportion to the work per epoch, so the small Q networks
+     * don't hold on to cores the road network could use. If a job fails the others are still
+     * waited for, then the failure is rethrown and nothing is kept.
+     */
+    private void train_concurrently(List<TrainingJob> jobs, int threads) {
+        jobs.removeIf(job -> {
+            if (job.dataset.getRecordCount() > 0)
+                return false;
+            System.out.printf("Nothing to train %s on\n", job.name);
+            return true;
+        });
+        if (jobs.isEmpty())
+            return;
+
+        threads = Math.max(1, threads);
+        double total_cost = 0;
+        for (TrainingJob job : jobs)
+            total_cost += job.cost();
+
+        int[] shares = new int[jobs.size()];
+        int spare = Math.max(0, threads - jobs.size());
+        int assigned = 0;
+        int largest = 0;
+        for (int i = 0; i < shares.length; ++i) {
+            shares[i] = 1 + (int) (spare * jobs.get(i).cost() / total_cost);
+            assigned += shares[i];
+            if (jobs.get(i).cost() > jobs.get(largest).cost())
+                largest = i;
+        }
+        // whatever is left after rounding down goes to the most expensive job
+        shares[largest] += Math.max(0, threads - assigned);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, jobs.size()));
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < jobs.size(); ++i) {
+            TrainingJob job = jobs.get(i);
+            int share = shares[i];
+            System.out.printf("Training %s on %d thread(s)\n", job.name, share);
+            futures.add(executor.submit(() -> run(job, share)));
+        }
+
+        // wait for every job, so a failed one doesn't leave the others training in the background
+        RuntimeException failure = null;
+        try {
+            for (int i = 0; i < futures.size(); ++i) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    System.out.printf("Training %s failed: %s\n", jobs.get(i).name, e.getCause().getMessage());
+                    if (failure == null)
+                        failure = new RuntimeException("Training " + jobs.get(i).name + " failed", e.getCause());
+                    else
+                        failure.addSuppressed(e.getCause());
                 }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new RuntimeException("Training interrupted", e);
+        } finally {
+            executor.shutdown();
+        }
+
+        // half-trained networks mustn't be stored
+        if (failure != null)
+            throw failure;
+
+        thaw();
+    }
 
-                dataset.add(new BasicMLDataPair(new BasicMLData(new_x),
-                            new BasicMLData(data.Y[i])));
+    /**
+     * Train a single network, threads is passed to Encog (0 lets it pick). Every
+     * checkpoint_interval epochs the state is saved, and with resume set the run continues
+     * from the last checkpoint of a job with the same name if there is one. A finished job
+     * leaves a checkpoint at its last epoch, which storeGenome deletes once the network is
+     * stored, so a job that finished before the others were interrupted isn't run again.
+     */
+    private void run(TrainingJob job, int threads) {
+        Propagation train = new ResumableRPROP(job.network, job.dataset);
+        train.setThreadCount(threads);
+
+        Path checkpoint = TrainingCheckpoint.path(job.name);
+        int first = 1;
+        if (resume) {
+            TrainingCheckpoint saved = TrainingCheckpoint.load(checkpoint);
+            if (saved != null && saved.matches(job.network, job.model)) {
+                saved.restore(job.network, train);
+                first = saved.epoch + 1;
+                if (saved.epoch >= job.epochs)
+                    System.out.printf("%s was already finished\n", job.name);
+                else
+                    System.out.printf("Resuming %s at epoch %d\n", job.name, first);
+            } else if (saved != null) {
+                System.out.printf("The checkpoint of %s doesn't match the network or data, starting over\n", job.name);
             }
-        } catch (IOException e) {
-            System.out.println(e.getMessage());
         }
 
-        // training loop
-        Propagation train = new ResilientPropagation(network, dataset);
-        for (int epoch = 1; epoch < epochs; ++epoch) {
+        for (int epoch = first; epoch < job.epochs; ++epoch) {
             train.iteration();
 
             if (epoch % 100 == 0)
-                System.out.printf("Epoch #%d: Error %f\n", epoch, train.getError());
+                System.out.printf("%s epoch #%d: Error %f\n", job.name, epoch, train.getError());
+
+            if (checkpoint_interval > 0 && epoch % checkpoint_interval == 0) {
+                try {
+                    new TrainingCheckpoint(job.name, epoch, job.network, train, job.model).save(checkpoint);
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
+            }
         }
 
         train.finishTraining();
-    }
 
-    public void retrain_q_road(int epochs) {
-        retrain_q(epochs, q_network, "q_data");
+        // the run is complete, resuming only restores the network until it's stored
+        if (checkpoint_interval > 0 && first <= job.epochs) {
+            try {
+                new TrainingCheckpoint(job.name, job.epochs, job.network, train, job.model).save(checkpoint);
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+        synchronized (this) {
+            if (finished == null)
+                finished = new ArrayList<>();
+            finished.add(checkpoint);
+        }
     }
 
-    public void retrain_q_dirt(int epochs) {
-        retrain_q(epochs, dirt_q, "q_dirt");
+    /**
+     * The samples of all csv files in training_folder, normalized with (and setting) the
+     * statistics of model.
+     */
+    private MLDataSet load_training_set(String training_folder, DataModel model) {
+        // every sample's input is the frames t - history .. t, read straight from the loaded data
+        return new WindowedDataSet(load_training_data(training_folder, model), history, history + 1);
     }
 
-    private void retrain_q(int epochs, BasicNetwork network, String data_folder) {
-        // get all the csv files in the training directory
-        List<String> filenames = new ArrayList<>();
+    /**
+     * The csv files in training_folder, normalized with (and setting) the statistics of model,
+     * with the actions clamped to the ranges the networks can output.
+     */
+    static Data load_training_data(String training_folder, DataModel model) {
+        List<String> filenames = list_csv(training_folder);
+        System.out.printf("Training on %s\n", filenames);
+
+        // load all the training files
+        Data data = new Data(22, 3);
         try {
-            Files.list(Paths.get(data_folder))
-                    .map(String::valueOf)
-                    .filter(path -> path.endsWith(".csv"))
-                    .forEach(path -> filenames.add(path));
+            data = model.load_data(filenames, Paths.get(training_folder, DatasetCache.FILENAME));
         } catch (IOException e) {
             System.out.println(e.getMessage());
         }
-        System.out.printf("Training on %s\n", filenames);
+        clamp_actions(data);
+
+        return data;
+    }
 
-        MLDataSet dataset = new BasicMLDataSet();
+    static void clamp_actions(Data data) {
+        for (int i = 0; i < data.rows; ++i) {
+            int y = i * data.y_columns;
+            data.Y[y] = clamp(data.Y[y], 0, 1);
+            data.Y[y + 1] = clamp(data.Y[y + 1], 0, 1);
+            data.Y[y + 2] = clamp(data.Y[y + 2], -1, 1);
+        }
+    }
 
-        // load all the training files into the dataset
+    private MLDataSet load_q_set(String data_folder) {
+        return new WindowedDataSet(load_q_training_data(data_folder), 0, 0);
+    }
+
+    private Data load_q_training_data(String data_folder) {
+        List<String> filenames = list_csv(data_folder);
+        System.out.printf("Training on %s\n", filenames);
+
+        // load all the training files
+        Data data = new Data(22, 3);
         try {
-            Data data = road_model.load_q_data(filenames);
-            for (int i = 0; i < data.X.length; ++i) {
-                dataset.add(new BasicMLDataPair(new BasicMLData(data.X[i]),
-                        new BasicMLData(data.Y[i])));
-            }
+            data = road_model.load_q_data(filenames, Paths.get(data_folder, DatasetCache.FILENAME));
         } catch (IOException e) {
             System.out.println(e.getMessage());
         }
 
-        // training loop
-        Propagation train = new ResilientPropagation(network, dataset);
-        for (int epoch = 1; epoch < epochs; ++epoch) {
-            train.iteration();
+        return data;
+    }
 
-            if (epoch % 100 == 0)
-                System.out.printf("Epoch #%d: Error %f\n", epoch, train.getError());
+    /**
+     * All the csv files in folder, sorted by name.
+     */
+    static List<String> list_csv(String folder) {
+        return list_files(folder, ".csv");
+    }
+
+    static List<String> list_files(String folder, String extension) {
+        List<String> filenames = new ArrayList<>();
+        try {
+            Files.list(Paths.get(folder))
+                    .map(String::valueOf)
+                    .filter(path -> path.endsWith(extension))
+                    .sorted()
+                    .forEach(path -> filenames.add(path));
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
         }
 
-        train.finishTraining();
+        return filenames;
     }
 
-    public double clamp(double value, double min, double max) {
+    public static double clamp(double value, double min, double max) {
         if (value < min)
             return min;
         else if (value > max)
@@ -194,43 +562,102 @@ public class NeuralNetwork implements Serializable {
             return value;
     }
 
+    /**
+     * The methods below take unnormalized features (as given by DataModel.format_input with
+     * normalize_data false); the normalization is folded into the compiled networks.
+     */
+    /**
+     * Output is [acceleration, brake, steering] for the unnormalized histories, oldest first.
+     */
     public double[] getRoadOutput(List<double[]> histories) {
-        return getOutput(histories, road_network);
+        double[] output = new double[3];
+        getRoadOutput(flatten(histories, road_network.getInputCount()), output);
+
+        return output;
     }
 
+    /**
+     * Same as getRoadOutput, with the dirt network. The histories are unnormalized as well.
+     */
     public double[] getDirtOutput(List<double[]> histories) {
-        return getOutput(histories, dirt_network);
+        double[] output = new double[3];
+        getDirtOutput(flatten(histories, dirt_network.getInputCount()), output);
+
+        return output;
+    }
+
+    public void getRoadOutput(double[] input, double[] output) {
+        if (road_frozen == null || road_frozen.source != road_network)
+            road_frozen = FrozenNetwork.compile(road_network, road_model);
+        road_frozen.compute(input, output);
     }
 
+    public void getDirtOutput(double[] input, double[] output) {
+        if (dirt_frozen == null || dirt_frozen.source != dirt_network)
+            dirt_frozen = FrozenNetwork.compile(dirt_network, dirt_model);
+        dirt_frozen.compute(input, output);
+    }
+
+    /**
+     * The Q value of every acceleration offset for the unnormalized features of one frame.
+     */
     public double[] getQOutput(double[] input) {
         double[] output = new double[q_network.getOutputCount()];
-        q_network.compute(input, output);
+        getQOutput(input, output);
 
         return output;
     }
 
+    /**
+     * Same as getQOutput, with the dirt Q network. The features are unnormalized as well.
+     */
     public double[] getQDirtOutput(double[] input) {
         double[] output = new double[dirt_q.getOutputCount()];
-        dirt_q.compute(input, output);
+        getQDirtOutput(input, output);
 
         return output;
     }
 
+    public void getQOutput(double[] input, double[] output) {
+        if (q_frozen == null || q_frozen.source != q_network)
+            q_frozen = FrozenNetwork.compile(q_network, road_model);
+        q_frozen.compute(input, output);
+    }
+
+    public void getQDirtOutput(double[] input, double[] output) {
+        if (dirt_q_frozen == null || dirt_q_frozen.source != dirt_q)
+            dirt_q_frozen = FrozenNetwork.compile(dirt_q, dirt_model);
+        dirt_q_frozen.compute(input, output);
+    }
+
     /**
-     * Output is an array of the form [acceleration, brake, steering]
+     * Drop the compiled networks, they are recompiled on their next use. Needed after changing
+     * the weights or normalization of a network in place.
      */
-    public double[] getOutput(List<double[]> histories, BasicNetwork network) {
-        ArrayList<Double> input_list = new ArrayList<>();
+    public void thaw() {
+        road_frozen = null;
+        dirt_frozen = null;
+        q_frozen = null;
+        dirt_q_frozen = null;
+    }
 
+    private static double[] flatten(List<double[]> histories, int size) {
+        double[] input = new double[size];
+        int offset = 0;
         for (double[] h : histories) {
-            for (double element : h) {
-                input_list.add(element);
-            }
+            System.arraycopy(h, 0, input, offset, h.length);
+            offset += h.length;
         }
 
-        double[] input = new double[input_list.size()];
-        for (int i = 0; i < input.length; ++i)
-            input[i] = input_list.get(i);
+        return input;
+    }
+
+    /**
+     * Output is an array of the form [acceleration, brake, steering]
+     * Unlike the methods above this takes normalized histories and runs the network directly.
+     */
+    public double[] getOutput(List<double[]> histories, BasicNetwork network) {
+        double[] input = flatten(histories, network.getInputCount());
 
         double[] output = new double[3];
         network.compute(input, output);
@@ -251,12 +678,30 @@ public class NeuralNetwork implements Serializable {
             if (out != null) {
                 out.writeObject(this);
                 out.close();
+                clearCheckpoints();
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Delete the checkpoints of the finished jobs, their networks are stored now.
+     */
+    private synchronized void clearCheckpoints() {
+        if (finished == null)
+            return;
+
+        for (Path checkpoint : finished) {
+            try {
+                Files.deleteIfExists(checkpoint);
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+        finished.clear();
+    }
+
     // Load a neural network from memory
     public static NeuralNetwork loadGenome() {
 
@@ -0,0 +1,118 @@
+import org.encog.neural.networks.BasicNetwork;
+
+/**
+ * Q-learning updates on batches of replayed transitions, in the style of DQN.
+ *
+ * The Bellman targets r + gamma * max Q(s') of a whole batch are computed in one batched
+ * evaluation of a target network. The target network is a frozen copy of the Q network that is
+ * only synced every target_sync steps, so the targets don't move with every update the way they
+ * do against the live network. Each batch then gets a single Adam step. The batch, its training
+ * set, the trainer and the compiled networks are allocated once and refilled for every step.
+ */
+public class QBatchUpdate {
+    public final int batch_size;
+    public double gamma;
+    // steps between copies of the Q network into the target network
+    public int target_sync = 100;
+
+    private final BasicNetwork network;
+    private final int n_state;
+    private final int n_actions;
+    // the network as it is now and as it was at the last sync
+    private final FrozenNetwork online;
+    private final FrozenNetwork target;
+
+    private final Data batch;
+    private final AdamPropagation train;
+    private final double[] next_states;
+    private final double[] next_q;
+    private final int[] actions;
+    private final double[] rewards;
+    private final double[] errors;
+    private long steps;
+
+    public QBatchUpdate(BasicNetwork network, int n_state, int batch_size, double gamma, double learning_rate) {
+        this.network = network;
+        this.n_state = n_state;
+        this.n_actions = network.getOutputCount();
+        this.batch_size = batch_size;
+        this.gamma = gamma;
+
+        batch = new Data(n_state, n_actions, batch_size);
+        batch.rows = batch_size;
+        train = new AdamPropagation(network, new WindowedDataSet(batch, 0, 0), learning_rate);
+        // one gradient over the whole batch, too small to be worth splitting over threads
+        train.setThreadCount(1);
+
+        next_states = new double[batch_size * n_state];
+        next_q = new double[batch_size * n_actions];
+        actions = new int[batch_size];
+        rewards = new double[batch_size];
+        errors = new double[batch_size];
+        online = FrozenNetwork.compile(network);
+        target = FrozenNetwork.compile(network);
+    }
+
+    /**
+     * Copy the current Q network into the target network.
+     */
+    public void syncTarget() {
+        target.refresh();
+    }
+
+    /**
+     * Update the network on the batch_size transitions at indices of buffer. Returns the TD
+     * errors before the step, the transitions' new priorities; the array is reused by the next
+     * call.
+     */
+    public double[] step(ReplayBuffer buffer, int[] indices) {
+        if (indices.length != batch_size)
+            throw new IllegalArgumentException("Expected " + batch_size + " transitions, got " + indices.length);
+
+        for (int i = 0; i < batch_size; ++i) {
+            int index = indices[i];
+            buffer.getState(index, batch.X, i * n_state);
+            buffer.getNextState(index, next_states, i * n_state);
+            actions[i] = buffer.getAction(index);
+            rewards[i] = buffer.getReward(index);
+        }
+
+        // the ideal outputs are what the network predicts now, except for the action taken,
+        // so the other actions don't contribute to the gradient
+        online.refresh();
+        online.computeBatch(batch.X, batch_size, batch.Y);
+        target.computeBatch(next_states, batch_size, next_q);
+
+        for (int i = 0; i < batch_size; ++i) {
+            double best = next_q[i * n_actions];
+            for (int a = 1; a < n_actions; ++a)
+                best = Math.max(best, next_q[i * n_actions + a]);
+
+            int taken = i * n_actions + actions[i];
+            double bellman = rewards[i] + gamma * best;
+            errors[i] = bellman - batch.Y[taken];
+            batch.Y[taken] = bellman;
+        }
+
+        train.iteration();
+        if (++steps % target_sync == 0)
+            syncTarget();
+
+        return errors;
+    }
+
+    /**
+     * The error of the last step's batch, before that step.
+     */
+    public double getError() {
+        return train.getError();
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    public void finishTraining() {
+        train.finishTraining();
+    }
+}
@@ -0,0 +1,169 @@
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A fixed-capacity ring buffer of Q-learning transitions (state, action, reward, next state),
+ * stored in flat primitive arrays so adding one doesn't allocate. When full, the oldest
+ * transition is overwritten.
+ *
+ * Transitions are sampled in proportion to their priority (prioritized experience replay,
+ * Schaul et al.), using a sum tree so both sampling and updating a priority take O(log n).
+ * New transitions get the highest priority seen so far, so they're sampled at least once.
+ */
+public class ReplayBuffer implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // how strongly the priorities are followed, 0 samples uniformly
+    public static final double ALPHA = 0.6;
+    // keeps transitions that are already predicted well from never being sampled again
+    public static final double MIN_PRIORITY = 1e-3;
+
+    private final int capacity;
+    private final int state_size;
+    private final double[] states;
+    private final double[] next_states;
+    private final int[] actions;
+    private final double[] rewards;
+
+    // tree[1] is the total, the children of node i are 2i and 2i + 1, and transition i is leaf
+    // capacity + i
+    private final double[] tree;
+    private double max_priority = 1;
+
+    private int next;
+    private int size;
+
+    public ReplayBuffer(int capacity, int state_size) {
+        this.capacity = capacity;
+        this.state_size = state_size;
+        states = new double[capacity * state_size];
+        next_states = new double[capacity * state_size];
+        actions = new int[capacity];
+        rewards = new double[capacity];
+        tree = new double[2 * capacity];
+    }
+
+    /**
+     * Add a transition, the states are read from state[state_offset ..] and
+     * next_state[next_offset ..]. Returns the index it was stored at.
+     */
+    public int add(double[] state, int state_offset, int action, double reward, double[] next_state,
+                   int next_offset) {
+        int index = next;
+        System.arraycopy(state, state_offset, states, index * state_size, state_size);
+        System.arraycopy(next_state, next_offset, next_states, index * state_size, state_size);
+        actions[index] = action;
+        rewards[index] = reward;
+        setLeaf(index, max_priority);
+
+        next = (next + 1) % capacity;
+        size = Math.min(size + 1, capacity);
+        return index;
+    }
+
+    /**
+     * Fill indices with transitions sampled in proportion to their priority. The range of
+     * priorities is split into as many equal parts as there are indices, and one is sampled from
+     * each part, which spreads the samples better than drawing them independently.
+     */
+    public void sample(Random random, int[] indices) {
+        if (size == 0)
+            throw new IllegalStateException("The buffer is empty");
+
+        double segment = tree[1] / indices.length;
+        for (int i = 0; i < indices.length; ++i)
+            indices[i] = find((i + random.nextDouble()) * segment);
+    }
+
+    /**
+     * The leaf whose range of the cumulative priorities contains value.
+     */
+    private int find(double value) {
+        int node = 1;
+        while (node < capacity) {
+            int left = 2 * node;
+            if (value < tree[left] || tree[left + 1] == 0) {
+                node = left;
+            } else {
+                value -= tree[left];
+                node = left + 1;
+            }
+        }
+
+        // rounding can land just past the filled part of the buffer
+        return Math.min(node - capacity, size - 1);
+    }
+
+    /**
+     * Set the priority of a transition from the error the network made on it.
+     */
+    public void updatePriority(int index, double error) {
+        double priority = Math.pow(Math.abs(error) + MIN_PRIORITY, ALPHA);
+        max_priority = Math.max(max_priority, priority);
+        setLeaf(index, priority);
+    }
+
+    private void setLeaf(int index, double priority) {
+        // recompute the sums on the way up rather than adding the change, so rounding errors
+        // don't build up
+        int node = capacity + index;
+        tree[node] = priority;
+        for (node /= 2; node >= 1; node /= 2)
+            tree[node] = tree[2 * node] + tree[2 * node + 1];
+    }
+
+    public double getPriority(int index) {
+        return tree[capacity + index];
+    }
+
+    /**
+     * The sum of all priorities.
+     */
+    public double getTotalPriority() {
+        return tree[1];
+    }
+
+    public void getState(int index, double[] out, int offset) {
+        System.arraycopy(states, index * state_size, out, offset, state_size);
+    }
+
+    public void getNextState(int index, double[] out, int offset) {
+        System.arraycopy(next_states, index * state_size, out, offset, state_size);
+    }
+
+    public int getAction(int index) {
+        return actions[index];
+    }
+
+    public double getReward(int index) {
+        return rewards[index];
+    }
+
+    /**
+     * Add the transitions at indices to other, in that order.
+     */
+    public void copyTo(int[] indices, ReplayBuffer other) {
+        for (int index : indices)
+            other.add(states, index * state_size, actions[index], rewards[index], next_states, index * state_size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int getStateSize() {
+        return state_size;
+    }
+
+    public void clear() {
+        next = 0;
+        size = 0;
+        max_priority = 1;
+        Arrays.fill(tree, 0);
+    }
+}
@@ -0,0 +1,487 @@
+import cicontest.torcs.controller.Driver;
+import scr.Action;
+import scr.SensorModel;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * A small in-process simulator, so drivers can be run without TORCS.
+ *
+ * The track is reconstructed from a lap recorded by LoggingDriver: the recorded speeds give the
+ * distance covered every tick, the recorded steering and angle to the track axis give the track's
+ * curvature, and the track edge sensors give its width. The car is a kinematic bicycle model with
+ * limited grip, simple acceleration, braking and drag, driven by the actions the driver returns,
+ * and a barrier a few metres beyond either edge keeps it from getting lost. The track edge
+ * sensors are recomputed from the car's position and heading, capped by what was recorded at the
+ * same spot so curves ahead still show up.
+ *
+ * This is nowhere near TORCS physics, but it is deterministic, runs tens of thousands of ticks
+ * per second, and is good enough for comparing drivers and measuring their latency.
+ */
+public class ReplaySimulator implements SensorModel {
+    // TORCS calls the robots every 20 ms
+    public static final double DT = 0.02;
+    // changes whenever the physics or the reconstruction does, races of another version don't compare
+    public static final int VERSION = 2;
+
+    private static final double WHEELBASE = 2.6;
+    private static final double STEER_LOCK = 0.366;
+    private static final double MAX_ACCELERATION = 10.0;
+    private static final double POWER = 450.0;
+    private static final double MAX_BRAKE = 14.0;
+    private static final double DRAG = 0.0004;
+    private static final double OFF_TRACK_DRAG = 3.0;
+    // the most lateral acceleration the tyres give, beyond that the car slides wide
+    private static final double GRIP = 15.0;
+    // how far beyond the track edge the barriers are
+    private static final double RUN_OFF = 5.0;
+    private static final double[] GEAR_TOP_SPEEDS = {60, 60, 100, 140, 180, 230, 300};
+    private static final double[] SENSOR_ANGLES = {
+            -90, -75, -60, -45, -30, -20, -15, -10, -5, 0, 5, 10, 15, 20, 30, 45, 60, 75, 90};
+
+    private final String track;
+
+    // the reconstructed track, one entry per recorded frame
+    private final double[] distances;
+    private final double[] curvatures;
+    private final double[] half_widths;
+    private final double[][] recorded_edges;
+    private final double length;
+
+    // car state
+    private double position;
+    private double speed;
+    private double lateral;
+    private double angle;
+    private int gear;
+    private int segment;
+
+    // race state
+    private int ticks;
+    private int laps;
+    // the most laps completed so far, so crossing the line again after backing over it isn't a lap
+    private int completed;
+    private double lap_start;
+    private double last_lap;
+    private double best_lap;
+    private int off_track_ticks;
+
+    private final double[] edges = new double[19];
+    private final double[] opponents = new double[36];
+
+    /**
+     * Reconstruct track from the rows of a log, laid out like the training data: the 3
+     * actions (acceleration, brake, steering) followed by the 22 sensors (speed, track
+     * position, angle to the track axis and the 19 track edge sensors).
+     */
+    public ReplaySimulator(String track, List<double[]> frames) {
+        this.track = track;
+
+        int n = frames.size();
+        distances = new double[n + 1];
+        curvatures = new double[n];
+        half_widths = new double[n];
+        recorded_edges = new double[n][];
+
+        // follow the recorded car's heading, the track's heading is that plus its angle to the axis
+        double car_heading = 0;
+        double[] track_headings = new double[n];
+        boolean[] along = new boolean[n];
+        for (int i = 0; i < n; ++i) {
+            double[] frame = frames.get(i);
+            double track_position = frame[4];
+            double angle_to_axis = frame[5];
+            along[i] = Math.abs(track_position) <= 1 && Math.abs(angle_to_axis) < Math.PI / 4;
+            double v = frame[3] / 3.6;
+            track_headings[i] = car_heading + angle_to_axis;
+            double step = Math.max(0, v * Math.cos(angle_to_axis)) * DT;
+            distances[i + 1] = distances[i] + step;
+
+            double[] sensors = Arrays.copyOfRange(frame, 6, 25);
+            half_widths[i] = sensors[0] > 0 && sensors[18] > 0 ? (sensors[0] + sensors[18]) / 2 : 0;
+            recorded_edges[i] = sensors;
+
+            // the logs hold the steering before TORCS clamps it
+            double steering = clamp(frame[2], -1, 1);
+            car_heading += yawRate(v, steering) * DT;
+        }
+        length = distances[n];
+
+        // segment i runs from frame i to frame i + 1, the last one leads back to the first frame.
+        // The bicycle model doesn't follow a car that's spinning or off track, so where the
+        // recorded car was the track is taken to be straight
+        for (int i = 0; i < n; ++i) {
+            double step = distances[i + 1] - distances[i];
+            if (i + 1 < n && step > 1e-3 && along[i] && along[i + 1]) {
+                double turn = track_headings[i + 1] - track_headings[i];
+                curvatures[i] = Math.atan2(Math.sin(turn), Math.cos(turn)) / step;
+            }
+        }
+
+        // frames recorded off track have no usable width, borrow it from the neighbours
+        double last_width = 5;
+        for (int i = 0; i < n; ++i) {
+            if (half_widths[i] > 0)
+                last_width = half_widths[i];
+            else
+                half_widths[i] = last_width;
+        }
+
+        Arrays.fill(opponents, 200);
+        reset();
+    }
+
+    /**
+     * Build a simulator from the first recording of the given track in the data folders.
+     */
+    public static ReplaySimulator load(String track) throws IOException {
+        for (String folder : new String[]{"train_data", "dirt_data", "human_data"}) {
+            if (!Files.isDirectory(Paths.get(folder)))
+                continue;
+
+            // LoggingDriver names its logs track name + LocalDateTime, so "dirt-1" mustn't match "dirt-10..."
+            Pattern name = Pattern.compile(Pattern.quote(track) + "\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}(:\\d{2}(\\.\\d+)?)?\\.csv");
+            List<String> matches = Files.list(Paths.get(folder))
+                    .filter(path -> name.matcher(path.getFileName().toString()).matches())
+                    .map(String::valueOf)
+                    .sorted()
+                    .collect(Collectors.toList());
+            if (matches.isEmpty())
+                continue;
+
+            List<double[]> frames = new ArrayList<>();
+            CsvParser.parse(matches.get(0), 25, true, row -> frames.add(row.clone()));
+            if (frames.isEmpty())
+                throw new IOException("No frames found in " + matches.get(0));
+            return new ReplaySimulator(track, frames);
+        }
+
+        throw new IOException("No recording found for track " + track);
+    }
+
+    public void reset() {
+        position = 0;
+        speed = 0;
+        lateral = 0;
+        angle = 0;
+        gear = 1;
+        segment = 0;
+        ticks = 0;
+        laps = 0;
+        completed = 0;
+        lap_start = 0;
+        last_lap = 0;
+        best_lap = 0;
+        off_track_ticks = 0;
+        updateSensors();
+    }
+
+    /**
+     * Race the driver for the given number of laps, giving up after max_ticks ticks. The
+     * driver is called the same way the TORCS client calls it, extras included.
+     */
+    public Result race(Driver driver, int n_laps, int max_ticks) {
+        return race(driver, n_laps, max_ticks, simulator -> false);
+    }
+
+    /**
+     * Decides after every tick whether a race should be given up.
+     */
+    public interface Stop {
+        boolean test(ReplaySimulator simulator);
+    }
+
+    /**
+     * Same as above, but also gives up as soon as stop says so.
+     */
+    public Result race(Driver driver, int n_laps, int max_ticks, Stop stop) {
+        reset();
+        driver.setTrackName(track);
+
+        while (laps < n_laps && ticks < max_ticks) {
+            Action action = driver.determineAction(this);
+            step(action);
+            if (stop.test(this))
+                break;
+        }
+
+        return new Result(track, laps, ticks, getTime(), best_lap, getDistanceRaced(), off_track_ticks);
+    }
+
+    /**
+     * Advance the car one tick.
+     */
+    public void step(Action action) {
+        if (action.gear != 0)
+            gear = action.gear;
+
+        double accelerate = clamp(action.accelerate, 0, 1);
+        double brake = clamp(action.brake, 0, 1);
+        double steering = clamp(action.steering, -1, 1);
+        double half_width = half_widths[segment];
+        boolean off_track = Math.abs(lateral) > half_width;
+
+        // power limited acceleration up to the gear's top speed, braking, and drag that grows with
+        // the square of the speed
+        double force = accelerate * Math.min(MAX_ACCELERATION, POWER / Math.max(Math.abs(speed), 1));
+        if (Math.abs(speed) * 3.6 >= GEAR_TOP_SPEEDS[Math.max(0, Math.min(gear, GEAR_TOP_SPEEDS.length - 1))])
+            force = 0;
+        if (gear < 0)
+            force = -force;
+        double resistance = DRAG * speed * speed + (off_track ? OFF_TRACK_DRAG : 0);
+        double deceleration = brake * MAX_BRAKE + resistance;
+        speed += force * DT;
+        speed = speed > 0 ? Math.max(0, speed - deceleration * DT) : Math.min(0, speed + deceleration * DT);
+
+        // the angle is the track's heading minus the car's, positive steering turns left
+        double yaw_rate = yawRate(speed, steering);
+        double forward = speed * Math.cos(angle) * DT;
+        angle += curvatures[segment] * forward - yaw_rate * DT;
+        angle = Math.atan2(Math.sin(angle), Math.cos(angle));
+        lateral -= speed * Math.sin(angle) * DT;
+
+        // the barrier turns the car along it, keeping only the speed it had along the track
+        if (Math.abs(lateral) > half_width + RUN_OFF) {
+            lateral = Math.signum(lateral) * (half_width + RUN_OFF);
+            speed *= Math.abs(Math.cos(angle));
+            angle = Math.cos(angle) >= 0 ? 0 : Math.PI;
+        }
+
+        position += forward;
+        if (off_track)
+            off_track_ticks++;
+        ticks++;
+
+        if (position >= length) {
+            position -= length;
+            laps++;
+            if (laps > completed) {
+                completed = laps;
+                last_lap = getTime() - lap_start;
+                lap_start = getTime();
+                if (best_lap == 0 || last_lap < best_lap)
+                    best_lap = last_lap;
+            }
+        } else if (position < 0) {
+            position += length;
+            laps--;
+        }
+
+        updateSensors();
+    }
+
+    private void updateSensors() {
+        while (segment + 1 < curvatures.length && distances[segment + 1] <= position)
+            segment++;
+        while (segment > 0 && distances[segment] > position)
+            segment--;
+
+        double half_width = half_widths[segment];
+        if (Math.abs(lateral) > half_width) {
+            Arrays.fill(edges, -1);
+            return;
+        }
+
+        // distance along each beam to the edges of a straight track, capped by the recording
+        double[] recorded = recorded_edges[segment];
+        for (int i = 0; i < edges.length; ++i) {
+            double beam = -angle - Math.toRadians(SENSOR_ANGLES[i]);
+            double sin = Math.sin(beam);
+            double distance;
+            if (sin > 1e-6)
+                distance = (half_width - lateral) / sin;
+            else if (sin < -1e-6)
+                distance = (half_width + lateral) / -sin;
+            else
+                distance = 200;
+
+            if (recorded[i] > 0)
+                distance = Math.min(distance, recorded[i]);
+            edges[i] = Math.min(200, distance);
+        }
+    }
+
+    /**
+     * How fast the car turns at speed v (m/s), limited by GRIP. The track is reconstructed with
+     * the same limit, so a recorded car that was sliding yields a corner the simulated car can
+     * take at the recorded speed, not a tighter one only the steering angle would give.
+     */
+    private static double yawRate(double v, double steering) {
+        double yaw_rate = v * steering * STEER_LOCK / WHEELBASE;
+        double limit = GRIP / Math.max(Math.abs(v), 1);
+
+        return clamp(yaw_rate, -limit, limit);
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    public double getLength() {
+        return length;
+    }
+
+    @Override
+    public double getSpeed() {
+        return speed * 3.6;
+    }
+
+    @Override
+    public double getAngleToTrackAxis() {
+        return angle;
+    }
+
+    @Override
+    public double[] getTrackEdgeSensors() {
+        return edges;
+    }
+
+    @Override
+    public double[] getFocusSensors() {
+        return new double[5];
+    }
+
+    @Override
+    public double getTrackPosition() {
+        return lateral / half_widths[segment];
+    }
+
+    @Override
+    public int getGear() {
+        return gear;
+    }
+
+    @Override
+    public double[] getOpponentSensors() {
+        return opponents;
+    }
+
+    @Override
+    public int getRacePosition() {
+        return 1;
+    }
+
+    @Override
+    public double getLateralSpeed() {
+        return speed * 3.6 * Math.sin(angle);
+    }
+
+    @Override
+    public double getCurrentLapTime() {
+        return getTime() - lap_start;
+    }
+
+    @Override
+    public double getDamage() {
+        return 0;
+    }
+
+    @Override
+    public double getDistanceFromStartLine() {
+        return position;
+    }
+
+    @Override
+    public double getDistanceRaced() {
+        return laps * length + position;
+    }
+
+    @Override
+    public double getFuelLevel() {
+        return 100;
+    }
+
+    @Override
+    public double getLastLapTime() {
+        return last_lap;
+    }
+
+    @Override
+    public double getRPM() {
+        double top_speed = GEAR_TOP_SPEEDS[Math.max(0, Math.min(gear, GEAR_TOP_SPEEDS.length - 1))];
+        return Math.min(9500, 2000 + 7000 * Math.abs(getSpeed()) / top_speed);
+    }
+
+    @Override
+    public double[] getWheelSpinVelocity() {
+        double spin = speed / 0.33;
+        return new double[]{spin, spin, spin, spin};
+    }
+
+    @Override
+    public double getZSpeed() {
+        return 0;
+    }
+
+    @Override
+    public double getZ() {
+        return 0;
+    }
+
+    @Override
+    public String getMessage() {
+        return "";
+    }
+
+    @Override
+    public double getBestLapTime() {
+        return best_lap;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return false;
+    }
+
+    @Override
+    public double getTime() {
+        return ticks * DT;
+    }
+
+    @Override
+    public int getTicks() {
+        return ticks;
+    }
+
+    @Override
+    public int getLaps() {
+        return laps;
+    }
+
+    /**
+     * The outcome of one simulated race.
+     */
+    public static class Result {
+        public final String track;
+        public final int laps;
+        public final int ticks;
+        public final double time;
+        public final double best_lap;
+        public final double distance;
+        public final int off_track_ticks;
+
+        public Result(String track, int laps, int ticks, double time, double best_lap, double distance,
+                      int off_track_ticks) {
+            this.track = track;
+            this.laps = laps;
+            this.ticks = ticks;
+            this.time = time;
+            this.best_lap = best_lap;
+            this.distance = distance;
+            this.off_track_ticks = off_track_ticks;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d laps in %.2f s (best lap %.2f s), %.0f m, %d ticks off track",
+                    track, laps, time, best_lap, distance, off_track_ticks);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import org.encog.mathutil.EncogMath;
+import org.encog.ml.data.MLDataSet;
+import org.encog.neural.networks.ContainsFlat;
+import org.encog.neural.networks.training.propagation.Propagation;
+import org.encog.neural.networks.training.propagation.TrainingContinuation;
+import org.encog.neural.networks.training.propagation.resilient.RPROPConst;
+
+import java.util.Arrays;
+
+/**
+ * The same RPROP+ as Encog's ResilientPropagation (its default), but pause() saves all of its
+ * state. Encog's version leaves out the last weight changes, so a resumed run takes different
+ * steps than one that was never interrupted; with this one they're identical.
+ */
+public class ResumableRPROP extends Propagation {
+    public static final String LAST_GRADIENTS = "LAST_GRADIENTS";
+    public static final String UPDATE_VALUES = "UPDATE_VALUES";
+    public static final String LAST_WEIGHT_CHANGES = "LAST_WEIGHT_CHANGES";
+
+    private final double[] update_values;
+    private final double[] last_weight_changes;
+
+    public ResumableRPROP(ContainsFlat network, MLDataSet training) {
+        super(network, training);
+
+        int weights = network.getFlat().getWeights().length;
+        update_values = new double[weights];
+        last_weight_changes = new double[weights];
+        Arrays.fill(update_values, RPROPConst.DEFAULT_INITIAL_UPDATE);
+    }
+
+    @Override
+    public void initOthers() {
+    }
+
+    @Override
+    public double updateWeight(double[] gradients, double[] last_gradient, int index) {
+        // has the gradient kept its sign since the last iteration?
+        int change = EncogMath.sign(gradients[index] * last_gradient[index]);
+        double weight_change = 0;
+
+        if (change > 0) {
+            // then take a bigger step
+            double delta = Math.min(update_values[index] * RPROPConst.POSITIVE_ETA, RPROPConst.DEFAULT_MAX_STEP);
+            weight_change = EncogMath.sign(gradients[index]) * delta;
+            update_values[index] = delta;
+            last_gradient[index] = gradients[index];
+        } else if (change < 0) {
+            // the last step was too big, undo it and take smaller ones from now on
+            update_values[index] = Math.max(update_values[index] * RPROPConst.NEGATIVE_ETA, RPROPConst.DELTA_MIN);
+            weight_change = -last_weight_changes[index];
+            last_gradient[index] = 0;
+        } else {
+            weight_change = EncogMath.sign(gradients[index]) * update_values[index];
+            last_gradient[index] = gradients[index];
+        }
+
+        last_weight_changes[index] = weight_change;
+        return weight_change;
+    }
+
+    @Override
+    public boolean canContinue() {
+        return true;
+    }
+
+    @Override
+    public TrainingContinuation pause() {
+        TrainingContinuation state = new TrainingContinuation();
+        state.setTrainingType(getClass().getSimpleName());
+        state.put(LAST_GRADIENTS, getLastGradient().clone());
+        state.put(UPDATE_VALUES, update_values.clone());
+        state.put(LAST_WEIGHT_CHANGES, last_weight_changes.clone());
+        return state;
+    }
+
+    @Override
+    public void resume(TrainingContinuation state) {
+        if (!getClass().getSimpleName().equals(state.getTrainingType()))
+            throw new IllegalArgumentException("Can't resume from the state of " + state.getTrainingType());
+
+        copy((double[]) state.get(LAST_GRADIENTS), getLastGradient());
+        copy((double[]) state.get(UPDATE_VALUES), update_values);
+        copy((double[]) state.get(LAST_WEIGHT_CHANGES), last_weight_changes);
+    }
+
+    private static void copy(double[] from, double[] to) {
+        if (from == null || from.length != to.length)
+            throw new IllegalArgumentException("The saved state doesn't match the network");
+        System.arraycopy(from, 0, to, 0, to.length);
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.Serializable;
+
+/**
+ * Per-column mean and variance, updated one row at a time with Welford's algorithm so the data
+ * only has to be read once and the result doesn't suffer from the cancellation of sum-of-squares.
+ * Statistics of separate parts of the data can be merged, see merge().
+ */
+public class RunningStatistics implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private long count;
+    private final double[] means;
+    private final double[] m2s;
+
+    public RunningStatistics(int columns) {
+        means = new double[columns];
+        m2s = new double[columns];
+    }
+
+    /**
+     * Statistics of count rows with the given means and (population) standard deviations.
+     */
+    public RunningStatistics(long count, double[] means, double[] stddevs) {
+        this.count = count;
+        this.means = means.clone();
+        this.m2s = new double[stddevs.length];
+        for (int i = 0; i < stddevs.length; ++i)
+            m2s[i] = stddevs[i] * stddevs[i] * count;
+    }
+
+    /**
+     * Add the row stored at values[offset .. offset + columns).
+     */
+    public void add(double[] values, int offset) {
+        count++;
+        double weight = 1.0 / count;
+        for (int i = 0; i < means.length; ++i) {
+            double x = values[offset + i];
+            double delta = x - means[i];
+            means[i] += delta * weight;
+            m2s[i] += delta * (x - means[i]);
+        }
+    }
+
+    /**
+     * Fold the statistics of other into these, using Chan et al.'s formula for combining the
+     * means and sums of squared differences of two sets.
+     */
+    public void merge(RunningStatistics other) {
+        if (other.count == 0)
+            return;
+
+        long total = count + other.count;
+        double weight = (double) other.count / total;
+        for (int i = 0; i < means.length; ++i) {
+            double delta = other.means[i] - means[i];
+            means[i] += delta * weight;
+            m2s[i] += other.m2s[i] + delta * delta * count * weight;
+        }
+        count = total;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double[] getMeans() {
+        return means.clone();
+    }
+
+    /**
+     * The population standard deviations (dividing by n, not n - 1).
+     */
+    public double[] getStddevs() {
+        double[] stddevs = new double[m2s.length];
+        for (int i = 0; i < stddevs.length; ++i)
+            stddevs[i] = Math.sqrt(m2s[i] / count);
+
+        return stddevs;
+    }
+}
@@ -0,0 +1,187 @@
+import org.encog.neural.networks.BasicNetwork;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Races road networks in the replay simulator on a set of tracks, one after the other. The
+ * fitness is the sum of the times it took to drive the laps on every track; a track that isn't
+ * finished within max_ticks counts with the time its average speed would have given.
+ *
+ * Every track is split into CHECKPOINTS equal parts. With an Incumbent, the elapsed time at
+ * every checkpoint of the fastest network raced to the end so far is shared between the
+ * evaluators of all workers; the checkpoints of the tracks it didn't finish have no split, so
+ * nobody is stopped there. A race is given up as soon as the candidate's elapsed time
+ * passes the incumbent's split (plus slack) at a checkpoint it hasn't reached yet; the slack
+ * keeps networks that lose a bit early on but make up for it later. A stopped network gets the
+ * incumbent's total scaled by how much less distance it had covered at that time, which is
+ * always worse than the incumbent but still ranks the losers among themselves. That score
+ * depends on the incumbent at the time, so it's reported as stopped and never cached.
+ *
+ * A network that is raced to the end faster than the incumbent becomes the new incumbent right
+ * away, so with more than one worker the fitness of a stopped network depends on which races
+ * finished before it.
+ */
+public class TrackSetEvaluator implements EvolutionaryStuff.Evaluator {
+    public static final int CHECKPOINTS = 10;
+
+    // how far a candidate may fall behind a split (as a fraction of it) before it's stopped
+    public double slack = 0.05;
+
+    /**
+     * The splits of a network that was raced on the whole track set: the elapsed time and the
+     * distance covered at every checkpoint, counted from the start of the first track. The
+     * checkpoints it didn't reach are at infinity.
+     */
+    public static class Splits {
+        public final double[] times;
+        public final double[] distances;
+        public final double total;
+
+        Splits(double[] times, double[] distances, double total) {
+            this.times = times;
+            this.distances = distances;
+            this.total = total;
+        }
+    }
+
+    /**
+     * The fastest splits so far, shared between the evaluators of one evolution run.
+     */
+    public static class Incumbent {
+        private final AtomicReference<Splits> splits = new AtomicReference<>();
+        public final AtomicInteger races = new AtomicInteger();
+        public final AtomicInteger stopped = new AtomicInteger();
+
+        public Splits get() {
+            return splits.get();
+        }
+
+        /**
+         * Make candidate the incumbent if it's faster than the current one.
+         */
+        void offer(Splits candidate) {
+            Splits current;
+            do {
+                current = splits.get();
+                if (current != null && current.total <= candidate.total)
+                    return;
+            } while (!splits.compareAndSet(current, candidate));
+        }
+
+        public void reset() {
+            splits.set(null);
+            races.set(0);
+            stopped.set(0);
+        }
+    }
+
+    private final ReplaySimulator[] simulators;
+    private final int laps;
+    private final int max_ticks;
+    private final Incumbent incumbent;
+    private final NeuralNetwork base;
+    private final DefaultDriver driver;
+
+    // the race in progress
+    private final double[] times;
+    private final double[] distances;
+    private Splits against;
+    private double elapsed;
+    private double covered;
+    private int checkpoint;
+    private boolean behind;
+
+    /**
+     * Race on tracks for laps laps each, giving up on a track after max_ticks. Without an
+     * incumbent (null) every race is driven to the end.
+     */
+    public TrackSetEvaluator(String[] tracks, int laps, int max_ticks, Incumbent incumbent) throws IOException {
+        simulators = new ReplaySimulator[tracks.length];
+        for (int i = 0; i < tracks.length; ++i)
+            simulators[i] = ReplaySimulator.load(tracks[i]);
+
+        this.laps = laps;
+        this.max_ticks = max_ticks;
+        this.incumbent = incumbent;
+        base = NeuralNetwork.loadGenome();
+        driver = new DefaultDriver();
+        times = new double[tracks.length * CHECKPOINTS];
+        distances = new double[tracks.length * CHECKPOINTS];
+    }
+
+    @Override
+    public double evaluate(BasicNetwork network) {
+        base.road_network = network;
+        against = incumbent == null ? null : incumbent.get();
+        elapsed = 0;
+        covered = 0;
+        checkpoint = 0;
+        behind = false;
+        double fitness = 0;
+
+        for (int track = 0; track < simulators.length; ++track) {
+            ReplaySimulator simulator = simulators[track];
+            double distance = laps * simulator.getLength();
+            int first = track * CHECKPOINTS;
+
+            // the history of the previous track mustn't leak into this one
+            driver.setNeuralNetwork(base);
+            ReplaySimulator.Result result = simulator.race(driver, laps, max_ticks,
+                    s -> passed(s, first, distance));
+
+            if (behind) {
+                incumbent.stopped.incrementAndGet();
+                incumbent.races.incrementAndGet();
+                double at = covered + result.distance;
+                return at > 0 ? against.total * against.distances[checkpoint] / at : Double.POSITIVE_INFINITY;
+            }
+
+            if (result.laps >= laps) {
+                fitness += result.time;
+            } else {
+                fitness += result.distance > 0 ? result.time * distance / result.distance : Double.POSITIVE_INFINITY;
+                // the checkpoints that weren't reached
+                for (int i = checkpoint; i < first + CHECKPOINTS; ++i) {
+                    times[i] = Double.POSITIVE_INFINITY;
+                    distances[i] = covered + distance * (i - first + 1) / CHECKPOINTS;
+                }
+                checkpoint = first + CHECKPOINTS;
+            }
+            elapsed += result.time;
+            covered += distance;
+        }
+
+        if (incumbent != null) {
+            incumbent.races.incrementAndGet();
+            incumbent.offer(new Splits(times.clone(), distances.clone(), fitness));
+        }
+
+        return fitness;
+    }
+
+    @Override
+    public boolean stopped() {
+        return behind;
+    }
+
+    /**
+     * Record the checkpoints the car passed in the last tick, and whether it's now behind the
+     * incumbent's split at the next one.
+     */
+    private boolean passed(ReplaySimulator simulator, int first, double distance) {
+        double time = elapsed + simulator.getTime();
+        while (checkpoint < first + CHECKPOINTS
+                && simulator.getDistanceRaced() >= distance * (checkpoint - first + 1) / CHECKPOINTS) {
+            times[checkpoint] = time;
+            distances[checkpoint] = covered + distance * (checkpoint - first + 1) / CHECKPOINTS;
+            checkpoint++;
+        }
+
+        if (against != null && checkpoint < first + CHECKPOINTS && time > against.times[checkpoint] * (1 + slack))
+            behind = true;
+
+        return behind;
+    }
+}
@@ -0,0 +1,102 @@
+import org.encog.neural.networks.BasicNetwork;
+import org.encog.neural.networks.training.propagation.Propagation;
+import org.encog.neural.networks.training.propagation.TrainingContinuation;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * The state of a training run after some epoch: the network's weights, the trainer's state
+ * and the normalization the data was trained with, so the run can be continued exactly where
+ * it was interrupted.
+ *
+ * A checkpoint is written to a temporary file that is synced and then renamed over the old
+ * one, so there's always either the previous or the new checkpoint on disk, never half of one.
+ */
+public class TrainingCheckpoint implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final String FOLDER = "memory/checkpoints";
+
+    public final String name;
+    public final int epoch;
+    public final double[] weights;
+    public final TrainingContinuation state;
+    public final double[] means;
+    public final double[] stddevs;
+
+    public TrainingCheckpoint(String name, int epoch, BasicNetwork network, Propagation train, DataModel model) {
+        this.name = name;
+        this.epoch = epoch;
+        this.weights = network.getFlat().getWeights().clone();
+        this.state = train.pause();
+        this.means = model == null ? null : model.getMeans();
+        this.stddevs = model == null ? null : model.getStddevs();
+    }
+
+    /**
+     * Where the checkpoints of the training run with the given name go.
+     */
+    public static Path path(String name) {
+        return Paths.get(FOLDER, name.replaceAll("[^A-Za-z0-9_-]", "_") + ".checkpoint");
+    }
+
+    public void save(Path path) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+             ObjectOutputStream out = new ObjectOutputStream(file)) {
+            out.writeObject(this);
+            out.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The checkpoint at path, or null if there is none (or it can't be read).
+     */
+    public static TrainingCheckpoint load(Path path) {
+        if (!Files.isRegularFile(path))
+            return null;
+
+        try (InputStream file = Files.newInputStream(path);
+             ObjectInputStream in = new ObjectInputStream(file)) {
+            return (TrainingCheckpoint) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            System.out.printf("Can't read checkpoint %s: %s\n", path, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Whether this checkpoint can be resumed with network and data normalized by model.
+     */
+    public boolean matches(BasicNetwork network, DataModel model) {
+        if (weights.length != network.getFlat().getWeights().length)
+            return false;
+        if (model == null)
+            return true;
+
+        return Arrays.equals(means, model.getMeans()) && Arrays.equals(stddevs, model.getStddevs());
+    }
+
+    /**
+     * Put the saved weights into network and the saved state into train.
+     */
+    public void restore(BasicNetwork network, Propagation train) {
+        System.arraycopy(weights, 0, network.getFlat().getWeights(), 0, weights.length);
+        train.resume(state);
+    }
+}
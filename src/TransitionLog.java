@@ -0,0 +1,176 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An append-only binary log of Q-learning transitions, written while racing and replayed
+ * later to retrain the Q networks. The file holds a header followed by fixed-size records:
+ *
+ *   magic, version, state size
+ *   per transition: action, reward, state (state size floats), next state (state size floats)
+ *
+ * All values are big endian; the states are the normalized Q inputs, so floats lose nothing
+ * that matters and keep a record at 8 + 8 * state size bytes. A log that was cut off mid-record
+ * (a crashed race) is read up to its last complete record.
+ */
+public class TransitionLog {
+    public static final String EXTENSION = ".transitions";
+
+    private static final int MAGIC = 0x51544c31; // "QTL1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    public static int recordSize(int state_size) {
+        return 8 + 8 * state_size;
+    }
+
+    /**
+     * Appends transitions to a log through a buffer, so the file is only written once the
+     * buffer is full and on close.
+     */
+    public static class Writer implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final int state_size;
+
+        /**
+         * Open the log at path for appending, creating it if it doesn't exist yet.
+         */
+        public Writer(Path path, int state_size) throws IOException {
+            if (path.toAbsolutePath().getParent() != null)
+                Files.createDirectories(path.toAbsolutePath().getParent());
+
+            this.state_size = state_size;
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, recordSize(state_size)));
+
+            if (channel.size() == 0) {
+                buffer.putInt(MAGIC).putInt(VERSION).putInt(state_size);
+            } else {
+                try (Reader reader = new Reader(path)) {
+                    if (reader.getStateSize() != state_size)
+                        throw new IOException(path + " holds states of " + reader.getStateSize() + " values");
+                }
+                // drop a record that was cut off, so the new ones line up again
+                long records = (channel.size() - HEADER_SIZE) / recordSize(state_size);
+                channel.truncate(HEADER_SIZE + records * recordSize(state_size));
+            }
+        }
+
+        public void append(double[] state, int state_offset, int action, double reward, double[] next_state,
+                           int next_offset) throws IOException {
+            if (buffer.remaining() < recordSize(state_size))
+                flush();
+
+            buffer.putInt(action);
+            buffer.putFloat((float) reward);
+            for (int i = 0; i < state_size; ++i)
+                buffer.putFloat((float) state[state_offset + i]);
+            for (int i = 0; i < state_size; ++i)
+                buffer.putFloat((float) next_state[next_offset + i]);
+        }
+
+        public void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Streams the transitions of a log one at a time, reading the file in blocks.
+     */
+    public static class Reader implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final int state_size;
+        private final int record_size;
+        private final double[] state;
+        private final double[] next_state;
+        private boolean end;
+
+        public Reader(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                while (header.hasRemaining() && channel.read(header) >= 0)
+                    ;
+                header.flip();
+                if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+                    throw new IOException(path + " isn't a transition log");
+                if (header.getInt() != VERSION)
+                    throw new IOException(path + " has an unknown version");
+
+                // a corrupt state size mustn't allocate a huge (or negative) record
+                state_size = header.getInt();
+                if (state_size <= 0 || 8 + 8L * state_size > channel.size() - HEADER_SIZE)
+                    throw new IOException(path + " has no complete transitions of " + state_size + " values");
+                record_size = recordSize(state_size);
+                buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, record_size));
+                buffer.flip();
+                state = new double[state_size];
+                next_state = new double[state_size];
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        public int getStateSize() {
+            return state_size;
+        }
+
+        /**
+         * Add the next transition to into, false if there are no complete ones left.
+         */
+        public boolean next(ReplayBuffer into) throws IOException {
+            if (buffer.remaining() < record_size && !fill())
+                return false;
+
+            int action = buffer.getInt();
+            double reward = buffer.getFloat();
+            for (int i = 0; i < state_size; ++i)
+                state[i] = buffer.getFloat();
+            for (int i = 0; i < state_size; ++i)
+                next_state[i] = buffer.getFloat();
+
+            into.add(state, 0, action, reward, next_state, 0);
+            return true;
+        }
+
+        /**
+         * Refill the buffer, false if there's no whole record left in the file.
+         */
+        private boolean fill() throws IOException {
+            buffer.compact();
+            while (!end && buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0)
+                    end = true;
+            }
+            buffer.flip();
+
+            return buffer.remaining() >= record_size;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
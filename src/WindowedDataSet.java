@@ -0,0 +1,175 @@
+import org.encog.ml.data.MLData;
+import org.encog.ml.data.MLDataPair;
+import org.encog.ml.data.MLDataSet;
+import org.encog.ml.data.basic.BasicMLData;
+import org.encog.ml.data.basic.BasicMLDataPair;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * A read-only training set over the rows of a Data, where every input is a window of the
+ * frames t - history .. t (oldest first) and the ideal output is the output of frame t.
+ *
+ * Since the rows are stored back to back, a window is just a slice of Data.X, so nothing is
+ * duplicated per sample and the memory use doesn't depend on the history. getRecord, which is
+ * what the Encog trainers use, copies the slice into the pair it is given; get and the iterator
+ * return new pairs and are only meant for the occasional error calculation.
+ *
+ * Instead of all frames from some point on, a set can also be made of an explicit list of
+ * frames, which can be shuffled between epochs for mini-batch training.
+ */
+public class WindowedDataSet implements MLDataSet {
+    private final Data data;
+    private final int history;
+    private final int first;
+    private final int records;
+    // the frames the windows end at, or null for first .. data.rows - 1
+    private final int[] frames;
+
+    /**
+     * The windows ending at the frames first .. data.rows - 1, first has to be at least history.
+     */
+    public WindowedDataSet(Data data, int history, int first) {
+        if (first < history)
+            throw new IllegalArgumentException("The first window would start before the data");
+
+        this.data = data;
+        this.history = history;
+        this.first = first;
+        this.records = Math.max(0, data.rows - first);
+        this.frames = null;
+    }
+
+    /**
+     * The windows ending at the given frames, which all have to be at least history. The array
+     * is used as is, so shuffle reorders it for every set opened from this one as well.
+     */
+    public WindowedDataSet(Data data, int history, int[] frames) {
+        for (int frame : frames) {
+            if (frame < history || frame >= data.rows)
+                throw new IllegalArgumentException("Frame " + frame + " has no complete window");
+        }
+
+        this.data = data;
+        this.history = history;
+        this.first = 0;
+        this.records = frames.length;
+        this.frames = frames;
+    }
+
+    private WindowedDataSet(WindowedDataSet other) {
+        this.data = other.data;
+        this.history = other.history;
+        this.first = other.first;
+        this.records = other.records;
+        this.frames = other.frames;
+    }
+
+    private int frame(long index) {
+        return frames == null ? first + (int) index : frames[(int) index];
+    }
+
+    /**
+     * Put the records in a random order, only possible for sets made of a list of frames.
+     */
+    public void shuffle(Random random) {
+        if (frames == null)
+            throw new UnsupportedOperationException("Only a list of frames can be shuffled");
+
+        for (int i = frames.length - 1; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            int frame = frames[i];
+            frames[i] = frames[j];
+            frames[j] = frame;
+        }
+    }
+
+    @Override
+    public int getIdealSize() {
+        return data.y_columns;
+    }
+
+    @Override
+    public int getInputSize() {
+        return (history + 1) * data.x_columns;
+    }
+
+    @Override
+    public boolean isSupervised() {
+        return true;
+    }
+
+    @Override
+    public long getRecordCount() {
+        return records;
+    }
+
+    @Override
+    public void getRecord(long index, MLDataPair pair) {
+        int frame = frame(index);
+        System.arraycopy(data.X, (frame - history) * data.x_columns, pair.getInputArray(), 0, getInputSize());
+        if (pair.getIdealArray() != null)
+            System.arraycopy(data.Y, frame * data.y_columns, pair.getIdealArray(), 0, data.y_columns);
+    }
+
+    @Override
+    public MLDataSet openAdditional() {
+        // there's no state besides the shared data and frames
+        return new WindowedDataSet(this);
+    }
+
+    @Override
+    public void add(MLData data) {
+        throw new UnsupportedOperationException("WindowedDataSet is read-only");
+    }
+
+    @Override
+    public void add(MLData input, MLData ideal) {
+        throw new UnsupportedOperationException("WindowedDataSet is read-only");
+    }
+
+    @Override
+    public void add(MLDataPair pair) {
+        throw new UnsupportedOperationException("WindowedDataSet is read-only");
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public int size() {
+        return records;
+    }
+
+    @Override
+    public MLDataPair get(int index) {
+        int frame = frame(index);
+        int start = (frame - history) * data.x_columns;
+        return new BasicMLDataPair(
+                new BasicMLData(Arrays.copyOfRange(data.X, start, start + getInputSize())),
+                new BasicMLData(Arrays.copyOfRange(data.Y, frame * data.y_columns, (frame + 1) * data.y_columns)));
+    }
+
+    @Override
+    public Iterator<MLDataPair> iterator() {
+        return new Iterator<MLDataPair>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < records;
+            }
+
+            @Override
+            public MLDataPair next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return get(index++);
+            }
+        };
+    }
+}